@@ -0,0 +1,93 @@
+package it.multicoredev.cc.benchmarks;
+
+import it.multicoredev.cc.storage.CloneNumberAllocator;
+import it.multicoredev.cc.storage.models.Clone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CloneNumberBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int clones;
+
+    private CloneNumberAllocator allocator;
+    private List<Clone> list;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        allocator = new CloneNumberAllocator();
+        list = new ArrayList<>();
+
+        for (int i = 0; i < clones; i++) {
+            int number = allocator.allocate();
+            list.add(new Clone(i + 1, 1, 1, number, 0));
+        }
+    }
+
+    // A clone in the middle is deleted and its number is taken again by the next creation
+    @Benchmark
+    public int allocator() {
+        int released = 2 + ThreadLocalRandom.current().nextInt(clones);
+        allocator.release(released);
+        return allocator.allocate();
+    }
+
+    // The list scan that was used before the allocator, kept as a baseline. The clone at index "skip" counts as deleted.
+    @Benchmark
+    public int linearScan() {
+        int skip = ThreadLocalRandom.current().nextInt(clones);
+
+        for (int number = 2; ; number++) {
+            boolean found = false;
+
+            for (int i = 0; i < list.size(); i++) {
+                if (i != skip && list.get(i).getNumber() == number) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found) return number;
+        }
+    }
+}
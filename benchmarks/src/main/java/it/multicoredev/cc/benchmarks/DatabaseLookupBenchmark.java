@@ -0,0 +1,103 @@
+package it.multicoredev.cc.benchmarks;
+
+import it.multicoredev.cc.storage.Database;
+import it.multicoredev.cc.storage.models.Clone;
+import it.multicoredev.cc.storage.models.Template;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseLookupBenchmark {
+    private SyntheticStorage storage;
+    private Database db;
+    private List<long[]> channels;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storage = new SyntheticStorage();
+        db = storage.open();
+        channels = storage.getChannels();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+        storage.delete();
+    }
+
+    private long[] randomChannel() {
+        return channels.get(ThreadLocalRandom.current().nextInt(channels.size()));
+    }
+
+    // The lookups a single voice event goes through before a scaling decision
+    @Benchmark
+    public void eventLookupChain(Blackhole bh) {
+        long[] channel = randomChannel();
+
+        bh.consume(db.isEnabled(channel[1]));
+        bh.consume(db.isRegistered(channel[0], channel[1]));
+
+        Template template = db.resolveTemplate(channel[0], channel[1]);
+        bh.consume(template);
+        if (template != null) bh.consume(db.getCloneCount(template.getId()));
+    }
+
+    @Benchmark
+    public Template getTemplate() {
+        long[] channel = randomChannel();
+        return db.resolveTemplate(channel[0], channel[1]);
+    }
+
+    @Benchmark
+    public boolean isRegistered() {
+        long[] channel = randomChannel();
+        return db.isRegistered(channel[0], channel[1]);
+    }
+
+    @Benchmark
+    public List<Clone> getClones() {
+        long[] channel = randomChannel();
+        Template template = db.resolveTemplate(channel[0], channel[1]);
+        return db.getClones(template);
+    }
+}
@@ -0,0 +1,207 @@
+package it.multicoredev.cc.benchmarks;
+
+import it.multicoredev.cc.scaling.ChannelGateway;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class FakeChannelGateway implements ChannelGateway {
+    private final long latency;
+    private final long jitter;
+    private final int bucketSize;
+    private final long bucketWindow;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Long, FakeGuild> guilds = new ConcurrentHashMap<>();
+    private final AtomicLong snowflake = new AtomicLong(1_000_000_000_000_000_000L);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder creates = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder permissionErrors = new LongAdder();
+    private volatile Disconnect onDisconnect = (guild, channel, member) -> {
+    };
+
+    // Every call takes latency + a random jitter in milliseconds once its guild bucket lets it through.
+    // Creations and deletions of a guild share one bucket of bucketSize calls every bucketWindow milliseconds.
+    public FakeChannelGateway(long latency, long jitter, int bucketSize, long bucketWindow) {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.bucketSize = bucketSize;
+        this.bucketWindow = bucketWindow;
+
+        AtomicInteger count = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "FakeGateway-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public long addGuild() {
+        long id = snowflake.getAndIncrement();
+        guilds.put(id, new FakeGuild());
+        return id;
+    }
+
+    public long addChannel(long guild) {
+        long id = snowflake.getAndIncrement();
+        guilds.get(guild).channels.put(id, ConcurrentHashMap.newKeySet());
+        return id;
+    }
+
+    // False if the channel was deleted in the meantime
+    public boolean connect(long guild, long channel, long member) {
+        Set<Long> members = getChannel(guild, channel);
+        if (members == null) return false;
+
+        members.add(member);
+        return true;
+    }
+
+    public void disconnect(long guild, long channel, long member) {
+        Set<Long> members = getChannel(guild, channel);
+        if (members != null) members.remove(member);
+    }
+
+    // Called for every member still connected to a channel when it is deleted, like Discord sending a voice leave
+    public void onDisconnect(Disconnect onDisconnect) {
+        this.onDisconnect = onDisconnect;
+    }
+
+    @Override
+    public long[] getMembers(long guild, long channel) {
+        Set<Long> members = getChannel(guild, channel);
+        if (members == null) return null;
+
+        return members.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @Override
+    public CompletableFuture<Long> copyChannel(long guild, long channel, String name) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        if (getChannel(guild, channel) == null) {
+            future.completeExceptionally(new IllegalStateException("Channel " + channel + " does not exist"));
+            return future;
+        }
+
+        creates.increment();
+        request(guild, () -> future.complete(addChannel(guild)));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteChannel(long guild, long channel) {
+        if (getChannel(guild, channel) == null) return CompletableFuture.completedFuture(null);
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        deletes.increment();
+        request(guild, () -> {
+            Set<Long> members = guilds.get(guild).channels.remove(channel);
+            if (members != null) members.forEach(member -> onDisconnect.accept(guild, channel, member));
+
+            future.complete(null);
+        });
+        return future;
+    }
+
+    @Override
+    public void notifyInsufficientPermissions(long guild) {
+        permissionErrors.increment();
+    }
+
+    private void request(long guild, Runnable response) {
+        long now = System.currentTimeMillis();
+        long sent = guilds.get(guild).reserve(now, bucketSize, bucketWindow);
+        if (sent > now) rateLimited.increment();
+
+        long delay = sent - now + latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : 0);
+        inFlight.incrementAndGet();
+        scheduler.schedule(() -> {
+            inFlight.decrementAndGet();
+            response.run();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private Set<Long> getChannel(long guild, long channel) {
+        FakeGuild g = guilds.get(guild);
+        return g != null ? g.channels.get(channel) : null;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getCreates() {
+        return creates.sum();
+    }
+
+    public long getDeletes() {
+        return deletes.sum();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    public long getPermissionErrors() {
+        return permissionErrors.sum();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public interface Disconnect {
+        void accept(long guild, long channel, long member);
+    }
+
+    private static class FakeGuild {
+        private final Map<Long, Set<Long>> channels = new ConcurrentHashMap<>();
+        private long windowStart;
+        private int used;
+
+        // Returns when a call may be sent: right away while the current window has room, otherwise at the start
+        // of the first window after the calls already waiting
+        private synchronized long reserve(long now, int size, long window) {
+            if (now >= windowStart + window) {
+                windowStart = now;
+                used = 0;
+            } else if (used >= size) {
+                windowStart += window;
+                used = 0;
+            }
+
+            used++;
+            return Math.max(now, windowStart);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package it.multicoredev.cc.benchmarks;
+
+import it.multicoredev.cc.metrics.Histogram;
+import it.multicoredev.cc.metrics.Metrics;
+import it.multicoredev.cc.scaling.ScalingEngine;
+import it.multicoredev.cc.storage.Database;
+import it.multicoredev.cc.storage.Settings;
+import it.multicoredev.cc.storage.models.Clone;
+import it.multicoredev.cc.utils.TimerWheel;
+import it.multicoredev.mclib.json.GsonHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class LoadSimulator {
+    private static final long BASE_MEMBER = 2_000_000_000_000_000_000L;
+
+    private final FakeChannelGateway gateway;
+    private final Database db;
+    private final TimerWheel timer = new TimerWheel("Simulator-Timer", 100, TimeUnit.MILLISECONDS, 512);
+    private final ScalingEngine engine;
+    private final File dir;
+    private final SimGuild[] guilds;
+    private final Map<Long, SimGuild> guildsById = new HashMap<>();
+
+    private long events;
+    private long sessions;
+    private long crowded;
+
+    public LoadSimulator(Settings settings, FakeChannelGateway gateway, int guildCount, int members) throws IOException, SQLException {
+        this.gateway = gateway;
+
+        dir = Files.createTempDirectory("cc-simulator").toFile();
+        db = new Database(new File(dir, "storage.db"), settings.getWriteBatchSize(), settings.getWriteBatchDelay(), settings.isCloneJournal());
+        engine = new ScalingEngine(settings, db, timer, gateway, null);
+        gateway.onDisconnect(this::disconnected);
+
+        guilds = new SimGuild[guildCount];
+        List<CompletableFuture<Database.Result>> writes = new ArrayList<>();
+        for (int i = 0; i < guildCount; i++) {
+            long guild = gateway.addGuild();
+            long template = gateway.addChannel(guild);
+            guilds[i] = new SimGuild(guild, template, BASE_MEMBER + (long) i * members, members);
+            guildsById.put(guild, guilds[i]);
+
+            writes.add(db.enableBot(guild, 0));
+            writes.add(db.registerTemplate(template, guild, "Room %d", 0));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+    }
+
+    // Sends rate voice events per second for the given number of seconds, then waits up to 30 seconds for the
+    // REST calls still running. Deletions still in their grace period are not waited for.
+    public void run(int rate, int seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+
+        for (long now = start; now < end; now = System.nanoTime()) {
+            long due = (now - start) * rate / 1_000_000_000L;
+            while (events < due) step();
+
+            Thread.sleep(1);
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long drainStart = System.nanoTime();
+        long drainEnd = drainStart + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < drainEnd && (gateway.getInFlight() > 0 || db.getPendingWrites() > 0)) Thread.sleep(10);
+
+        report(rate, elapsed, (System.nanoTime() - drainStart) / 1e9);
+    }
+
+    // One voice event from a random member: a join if disconnected, otherwise a move or a leave
+    private void step() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        SimGuild guild = guilds[random.nextInt(guilds.length)];
+        int index = random.nextInt(guild.location.length);
+        long member = guild.firstMember + index;
+
+        synchronized (guild) {
+            long current = guild.location[index];
+
+            if (current == 0) {
+                long channel = findChannel(guild);
+                if (!gateway.connect(guild.id, channel, member)) return;
+
+                guild.location[index] = channel;
+                sessions++;
+                engine.join(guild.id, channel, member);
+            } else if (random.nextInt(5) == 0) {
+                long channel = findChannel(guild);
+                if (channel == current || !gateway.connect(guild.id, channel, member)) return;
+
+                gateway.disconnect(guild.id, current, member);
+                guild.location[index] = channel;
+                engine.join(guild.id, channel, member);
+                engine.leave(guild.id, current, member);
+            } else {
+                gateway.disconnect(guild.id, current, member);
+                guild.location[index] = 0;
+                engine.leave(guild.id, current, member);
+            }
+        }
+
+        events++;
+    }
+
+    // Members pick an empty room like real users would, the template is shared when every room is taken
+    private long findChannel(SimGuild guild) {
+        long[] connected = gateway.getMembers(guild.id, guild.template);
+        if (connected != null && connected.length == 0) return guild.template;
+
+        for (Clone clone : db.getClones(guild.template, guild.id)) {
+            connected = gateway.getMembers(guild.id, clone.getId());
+            if (connected != null && connected.length == 0) return clone.getId();
+        }
+
+        crowded++;
+        return guild.template;
+    }
+
+    private void disconnected(long guildId, long channel, long member) {
+        SimGuild guild = guildsById.get(guildId);
+
+        synchronized (guild) {
+            int index = (int) (member - guild.firstMember);
+            if (guild.location[index] != channel) return;
+            guild.location[index] = 0;
+        }
+
+        engine.leave(guildId, channel, member);
+    }
+
+    private void report(int rate, double elapsed, double drain) {
+        long calls = gateway.getCreates() + gateway.getDeletes();
+
+        System.out.printf(Locale.ROOT, "Voice events:       %d in %.1f s, %.0f/s (target %d/s)%n", events, elapsed, events / elapsed, rate);
+        System.out.printf(Locale.ROOT, "User sessions:      %d, %d joined a crowded channel%n", sessions, crowded);
+        System.out.printf(Locale.ROOT, "REST calls:         %d creations, %d deletions, %d delayed by a rate limit, %.1f s to drain%n",
+                gateway.getCreates(), gateway.getDeletes(), gateway.getRateLimited(), drain);
+        System.out.printf(Locale.ROOT, "REST per session:   %.3f%n", sessions > 0 ? (double) calls / sessions : 0);
+        System.out.printf(Locale.ROOT, "Clones stored:      %d, %d failed creations%n", db.getClones().size(), Metrics.CLONE_FAILURES.get());
+        printLatency("Join to clone", Metrics.JOIN_TO_CLONE);
+        printLatency("Clone creation", Metrics.CLONE_CREATE);
+    }
+
+    private static void printLatency(String name, Histogram histogram) {
+        System.out.printf(Locale.ROOT, "%-19s %d samples, p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, max %.0f ms%n", name + ":", histogram.getCount(),
+                histogram.getPercentile(0.5) / 1e6, histogram.getPercentile(0.9) / 1e6, histogram.getPercentile(0.99) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    public void close() {
+        timer.stop();
+        gateway.shutdown();
+        db.close();
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+
+        dir.delete();
+    }
+
+    // Options are key=value pairs, every one has a default:
+    // guilds=1000 members=50 rate=5000 duration=60 latency=150 jitter=100 bucket=5 window=5000 settings=<settings.json>
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split <= 0) throw new IllegalArgumentException("Expected key=value, got " + arg);
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        Settings settings = options.containsKey("settings")
+                ? new GsonHelper().load(new File(options.get("settings")), Settings.class).init()
+                : new Settings().init();
+        FakeChannelGateway gateway = new FakeChannelGateway(
+                option(options, "latency", 150),
+                option(options, "jitter", 100),
+                (int) option(options, "bucket", 5),
+                option(options, "window", 5000)
+        );
+
+        LoadSimulator simulator = new LoadSimulator(settings, gateway, (int) option(options, "guilds", 1000), (int) option(options, "members", 50));
+        try {
+            simulator.run((int) option(options, "rate", 5000), (int) option(options, "duration", 60));
+        } finally {
+            simulator.close();
+        }
+    }
+
+    private static long option(Map<String, String> options, String key, long def) {
+        String value = options.get(key);
+        return value != null ? Long.parseLong(value) : def;
+    }
+
+    private static class SimGuild {
+        private final long id;
+        private final long template;
+        private final long firstMember;
+        private final long[] location;
+
+        private SimGuild(long id, long template, long firstMember, int members) {
+            this.id = id;
+            this.template = template;
+            this.firstMember = firstMember;
+            this.location = new long[members];
+        }
+    }
+}
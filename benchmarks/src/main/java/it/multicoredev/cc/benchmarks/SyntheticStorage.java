@@ -0,0 +1,109 @@
+package it.multicoredev.cc.benchmarks;
+
+import it.multicoredev.cc.storage.Database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class SyntheticStorage {
+    public static final int GUILDS = 10_000;
+    public static final int TEMPLATES_PER_GUILD = 2;
+    public static final int CLONES_PER_TEMPLATE = 5;
+    private static final long BASE_SNOWFLAKE = 900_000_000_000_000_000L;
+
+    private final File dir;
+    private final File file;
+    private final List<long[]> channels = new ArrayList<>();
+
+    // Builds a storage.db with 10k guilds and 100k clones. Ids of every channel are kept as {channel, guild}.
+    public SyntheticStorage() throws IOException, SQLException {
+        dir = Files.createTempDirectory("cc-benchmark").toFile();
+        file = new File(dir, "storage.db");
+
+        // Let Database create the schema at the current version, then fill it in bulk
+        new Database(file, 128, 5).close();
+
+        long snowflake = BASE_SNOWFLAKE;
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+             PreparedStatement guilds = connection.prepareStatement("INSERT INTO `guilds` (`guild`, `enabled`, `channel`) VALUES (?, 1, ?)");
+             PreparedStatement templates = connection.prepareStatement("INSERT INTO `templates` (`id`, `guild`, `name`, `secondary`) VALUES (?, ?, ?, NULL)");
+             PreparedStatement clones = connection.prepareStatement("INSERT INTO `clones` (`id`, `guild`, `template`, `number`, `secondary`) VALUES (?, ?, ?, ?, NULL)")) {
+            connection.setAutoCommit(false);
+
+            for (int g = 0; g < GUILDS; g++) {
+                long guild = snowflake++;
+                guilds.setLong(1, guild);
+                guilds.setLong(2, snowflake++);
+                guilds.addBatch();
+
+                for (int t = 0; t < TEMPLATES_PER_GUILD; t++) {
+                    long template = snowflake++;
+                    templates.setLong(1, template);
+                    templates.setLong(2, guild);
+                    templates.setString(3, "Room %d");
+                    templates.addBatch();
+                    channels.add(new long[]{template, guild});
+
+                    for (int c = 0; c < CLONES_PER_TEMPLATE; c++) {
+                        long clone = snowflake++;
+                        clones.setLong(1, clone);
+                        clones.setLong(2, guild);
+                        clones.setLong(3, template);
+                        clones.setInt(4, c + 2);
+                        clones.addBatch();
+                        channels.add(new long[]{clone, guild});
+                    }
+                }
+            }
+
+            guilds.executeBatch();
+            templates.executeBatch();
+            clones.executeBatch();
+            connection.commit();
+        }
+    }
+
+    public Database open() throws SQLException {
+        return new Database(file, 128, 5);
+    }
+
+    public List<long[]> getChannels() {
+        return channels;
+    }
+
+    public void delete() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+
+        dir.delete();
+    }
+}
@@ -1,26 +1,56 @@
 package it.multicoredev.cc;
 
+import it.multicoredev.cc.metrics.Metrics;
+import it.multicoredev.cc.metrics.MetricsServer;
+import it.multicoredev.cc.scaling.JdaChannelGateway;
+import it.multicoredev.cc.scaling.Predictor;
+import it.multicoredev.cc.scaling.Reconciler;
+import it.multicoredev.cc.scaling.ScalingEngine;
 import it.multicoredev.cc.storage.Database;
 import it.multicoredev.cc.storage.Settings;
 import it.multicoredev.cc.storage.Locale;
+import it.multicoredev.cc.storage.OccupancyHistory;
+import it.multicoredev.cc.utils.TimerWheel;
+import it.multicoredev.cc.utils.VirtualThreads;
 import it.multicoredev.mclib.json.GsonHelper;
 import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.Activity;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.interactions.DiscordLocale;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
 import net.dv8tion.jda.api.interactions.commands.build.Commands;
 import net.dv8tion.jda.api.interactions.commands.build.OptionData;
+import net.dv8tion.jda.api.interactions.commands.build.SlashCommandData;
 import net.dv8tion.jda.api.interactions.commands.build.SubcommandData;
-import net.dv8tion.jda.api.requests.restaction.CommandListUpdateAction;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Copyright © 2021 - 2022 by Lorenzo Magni
@@ -47,10 +77,18 @@ public class ChannelCloner {
     private static final GsonHelper gson = new GsonHelper();
     private static final File settingsFile = new File("settings.json");
     private static final File localizationsDir = new File("localizations");
+    private static final long LOCALIZATIONS_RELOAD_DELAY = 500;
+    private static final String COMMANDS_HASH = "commands_hash";
     private Settings settings;
-    private final Map<DiscordLocale, Locale> localizations = new HashMap<>();
+    private volatile Map<DiscordLocale, Locale> localizations = new EnumMap<>(DiscordLocale.class);
+    private volatile Map<String, Map<DiscordLocale, String>> commandDescriptions = new HashMap<>();
+    private final TimerWheel timer = new TimerWheel("ChannelCloner-Timer", 100, TimeUnit.MILLISECONDS, 512);
     private Database db;
-    private JDA jda;
+    private ScalingEngine scaling;
+    private Predictor predictor;
+    private ShardManager shards;
+    private ExecutorService virtualThreads;
+    private CompletableFuture<Void> commandRegistration = CompletableFuture.completedFuture(null);
 
     public void main() {
         System.out.println("   ____ _                            _    ____ _                       \n" +
@@ -69,102 +107,252 @@ public class ChannelCloner {
             System.exit(-1);
         }
 
+        if (settings.isVirtualThreads()) {
+            virtualThreads = VirtualThreads.newPerTaskExecutor("ChannelCloner-Virtual-");
+            if (virtualThreads == null) LOGGER.warn("Virtual threads need Java 21 or newer, falling back to platform threads");
+            else LOGGER.info("Running scaling and REST callbacks on virtual threads");
+        }
+
         LOGGER.info("Loading localizations...");
         loadLocalizations();
+        watchLocalizations();
 
         LOGGER.info("Initializing database...");
         try {
-            db = new Database(new File("storage.db"));
+            db = new Database(new File("storage.db"), settings.getWriteBatchSize(), settings.getWriteBatchDelay(), settings.isCloneJournal());
         } catch (SQLException e) {
             LOGGER.error(e.getMessage(), e);
             System.exit(-2);
         }
 
+        Runtime.getRuntime().addShutdownHook(new Thread(db::close, "ChannelCloner-Shutdown"));
+
+        if (settings.getMetricsPort() > 0) startMetrics();
+
+        scaling = new ScalingEngine(settings, db, timer, new JdaChannelGateway(this), virtualThreads);
+
         LOGGER.info("Starting bot...");
         try {
             if (settings.getToken() == null || settings.getToken().trim().isEmpty())
                 throw new IllegalArgumentException("Bot token cannot be null or empty!");
+            if (settings.getShardMin() >= 0 && settings.getShardsTotal() < 1)
+                throw new IllegalArgumentException("shards_total must be set to run a range of shards!");
 
-            jda = JDABuilder.createDefault(settings.getToken())
+            DefaultShardManagerBuilder builder = createBuilder()
                     .setAutoReconnect(true)
                     .setActivity(Activity.watching("https://multicore.network/discord"))
                     .addEventListeners(new EventListener(this))
-                    .build()
-                    .awaitReady();
+                    .setShardsTotal(settings.getShardsTotal())
+                    .setEventPoolProvider(this::createEventPool);
+            if (settings.getShardMin() >= 0) builder.setShards(settings.getShardMin(), settings.getShardMax());
+            if (virtualThreads != null) builder.setCallbackPoolProvider(shard -> virtualThreads);
+
+            shards = builder.build();
+            awaitReady();
         } catch (Exception e) {
             LOGGER.error(e.getMessage(), e);
             System.exit(-3);
         }
 
+        registerCommands();
+
+        new Reconciler(this, scaling).run();
+        scaling.warmUp();
+        if (settings.isPredictionEnabled()) startPrediction();
+
+        LOGGER.info("Bot is ready");
+    }
+
+    // Shards log in one after the other, the manager only knows about a shard once its turn came
+    private void awaitReady() throws InterruptedException {
+        while (shards.getShardsQueued() > 0) Thread.sleep(1000);
+        for (JDA shard : shards.getShards()) shard.awaitReady();
+
+        LOGGER.info("Running " + shards.getShardsRunning() + " of " + shards.getShardsTotal() + " shards");
+        LOGGER.info("Cached " + shards.getGuildCache().size() + " guilds, " + shards.getVoiceChannelCache().size() + " voice channels and " +
+                shards.getUserCache().size() + " users with the " + settings.getGatewayProfile() + " gateway profile");
+    }
+
+    // The lean profile only keeps what the bot reads: voice states, the members connected to a voice channel and the
+    // permission overrides copied to the clones. Members are never chunked.
+    private DefaultShardManagerBuilder createBuilder() {
+        if (!settings.isLeanGateway()) return DefaultShardManagerBuilder.createDefault(settings.getToken());
+
+        return DefaultShardManagerBuilder.create(settings.getToken(), EnumSet.of(GatewayIntent.GUILD_VOICE_STATES))
+                .setMemberCachePolicy(MemberCachePolicy.VOICE)
+                .setChunkingFilter(ChunkingFilter.NONE)
+                .disableCache(EnumSet.complementOf(EnumSet.of(CacheFlag.VOICE_STATE, CacheFlag.MEMBER_OVERRIDES)));
+    }
+
+    // Events of a shard are handled in order on its own thread, so a busy shard does not hold back the others
+    private ExecutorService createEventPool(int shard) {
+        String name = "ChannelCloner-Shard-" + shard + "-Events";
+        if (virtualThreads != null) return Executors.newSingleThreadExecutor(VirtualThreads.factory(name + "-"));
+
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Commands are global, only the process running shard 0 registers them
+    // Startup and the localization watcher may both register, registrations are chained so each one and its hash are
+    // done before the next is built. Nothing waits for them.
+    private synchronized void registerCommands() {
+        JDA main = shards.getShardById(0);
+        if (main == null) {
+            LOGGER.info("Shard 0 runs in another process, skipping command registration");
+            return;
+        }
+
+        commandRegistration = commandRegistration.thenCompose(ignored -> sendCommands(main))
+                .exceptionally(e -> {
+                    Throwable error = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    LOGGER.error("Cannot register bot commands: " + error.getMessage(), error);
+                    return null;
+                });
+    }
+
+    private CompletableFuture<Void> sendCommands(JDA main) {
+        SlashCommandData command = Commands.slash("cc", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("cc"))
+                .setDescriptionLocalizations(getCommandDescriptions("cc"))
+                .addSubcommands(
+                        new SubcommandData("info", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("info"))
+                                .setDescriptionLocalizations(getCommandDescriptions("info")),
+
+                        new SubcommandData("enable", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("enable"))
+                                .setDescriptionLocalizations(getCommandDescriptions("enable")),
+
+                        new SubcommandData("disable", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("disable"))
+                                .setDescriptionLocalizations(getCommandDescriptions("disable")),
+
+                        new SubcommandData("register", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register"))
+                                .setDescriptionLocalizations(getCommandDescriptions("register"))
+                                .addOptions(
+                                        new OptionData(OptionType.CHANNEL, "channel", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register:channel"), true)
+                                                .setDescriptionLocalizations(getCommandDescriptions("register:channel")),
+                                        new OptionData(OptionType.STRING, "name", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register:name"), true)
+                                                .setDescriptionLocalizations(getCommandDescriptions("register:name")),
+                                        new OptionData(OptionType.CHANNEL, "secondary", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register:secondary"), false)
+                                                .setDescriptionLocalizations(getCommandDescriptions("register:secondary")),
+                                        new OptionData(OptionType.STRING, "secondary_name", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register:secondary_name"), false)
+                                                .setDescriptionLocalizations(getCommandDescriptions("register:secondary_name"))
+                                ),
+
+                        new SubcommandData("unregister", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("unregister"))
+                                .setDescriptionLocalizations(getCommandDescriptions("unregister"))
+                                .addOptions(
+                                        new OptionData(OptionType.CHANNEL, "channel", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("unregister:channel"), true)
+                                                .setDescriptionLocalizations(getCommandDescriptions("unregister:channel"))
+                                )
+                ).setGuildOnly(true);
+
+        // Discord keeps global commands across restarts, they are only sent again when their definition changed
+        String hash = hash(command.toData().toJson());
+        if (hash.equals(db.getMeta(COMMANDS_HASH))) {
+            LOGGER.info("Bot commands are up to date");
+            return CompletableFuture.completedFuture(null);
+        }
+
         LOGGER.info("Registering bot commands...");
-        CommandListUpdateAction commands = jda.updateCommands()
-                .addCommands(
-                        Commands.slash("cc", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("cc"))
-                                .setDescriptionLocalizations(getCommandDescriptions("cc"))
-                                .addSubcommands(
-                                        new SubcommandData("info", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("info"))
-                                                .setDescriptionLocalizations(getCommandDescriptions("info")),
-
-                                        new SubcommandData("enable", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("enable"))
-                                                .setDescriptionLocalizations(getCommandDescriptions("enable")),
-
-                                        new SubcommandData("disable", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("disable"))
-                                                .setDescriptionLocalizations(getCommandDescriptions("disable")),
-
-                                        new SubcommandData("register", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register"))
-                                                .setDescriptionLocalizations(getCommandDescriptions("register"))
-                                                .addOptions(
-                                                        new OptionData(OptionType.CHANNEL, "channel", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register:channel"), true)
-                                                                .setDescriptionLocalizations(getCommandDescriptions("register:channel")),
-                                                        new OptionData(OptionType.STRING, "name", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register:name"), true)
-                                                                .setDescriptionLocalizations(getCommandDescriptions("register:name")),
-                                                        new OptionData(OptionType.CHANNEL, "secondary", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register:secondary"), false)
-                                                                .setDescriptionLocalizations(getCommandDescriptions("register:secondary")),
-                                                        new OptionData(OptionType.STRING, "secondary_name", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("register:secondary_name"), false)
-                                                                .setDescriptionLocalizations(getCommandDescriptions("register:secondary_name"))
-                                                ),
-
-                                        new SubcommandData("unregister", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("unregister"))
-                                                .setDescriptionLocalizations(getCommandDescriptions("unregister"))
-                                                .addOptions(
-                                                        new OptionData(OptionType.CHANNEL, "channel", getLocale(DiscordLocale.ENGLISH_US).commandDescriptions.get("unregister:channel"), true)
-                                                                .setDescriptionLocalizations(getCommandDescriptions("unregister:channel"))
-                                                )
-                                ).setGuildOnly(true));
+        return main.updateCommands().addCommands(command).submit()
+                .thenCompose(registered -> db.setMeta(COMMANDS_HASH, hash).thenAccept(result -> {
+                    if (result.isSuccess()) LOGGER.info("Registered " + registered.size() + " bot commands");
+                    else LOGGER.warn("Registered bot commands, but cannot store their hash: " + result.getError());
+                }));
+    }
 
+    private static String hash(byte[] data) {
         try {
-            commands.complete();
-        } catch (Exception e) {
-            LOGGER.error(e.getMessage(), e);
-            System.exit(-4);
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
+    }
 
-        LOGGER.info("Bot is ready");
+    public Settings settings() {
+        return settings;
     }
 
     public Database db() {
         return db;
     }
 
-    public JDA jda() {
-        return jda;
+    public TimerWheel timer() {
+        return timer;
     }
 
-    public Locale getLocale(DiscordLocale locale) {
-        if (localizations.containsKey(locale)) return localizations.get(locale);
-        else return localizations.get(DiscordLocale.ENGLISH_US);
+    public ScalingEngine scaling() {
+        return scaling;
     }
 
-    public Map<DiscordLocale, String> getCommandDescriptions(String id) {
-        Map<DiscordLocale, String> descriptions = new HashMap<>();
+    // Null unless predictive scaling is enabled
+    public Predictor predictor() {
+        return predictor;
+    }
 
-        localizations.forEach((discordLocale, locale) -> {
-            if (!locale.commandDescriptions.containsKey(id)) return;
+    public ShardManager shards() {
+        return shards;
+    }
 
-            descriptions.put(discordLocale, locale.commandDescriptions.get(id));
-        });
+    // Goes straight to the shard owning the guild instead of looking through every shard
+    public Guild getGuildById(long id) {
+        if (id == 0) return null;
+
+        JDA shard = shards.getShardById((int) ((id >>> 22) % shards.getShardsTotal()));
+        return shard != null ? shard.getGuildById(id) : null;
+    }
+
+    private void startPrediction() {
+        try {
+            predictor = new Predictor(this, scaling, new OccupancyHistory(new File("history")));
+            predictor.start();
+            LOGGER.info("Predictive scaling started" + (settings.isPredictionDryRun() ? " in dry run mode" : ""));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot start predictive scaling: " + e.getMessage());
+        }
+    }
+
+    private void startMetrics() {
+        Metrics.REGISTRY.gauge("cc_active_clones", "Clones currently stored", db::getCloneCount);
+        Metrics.REGISTRY.gauge("cc_db_pending_writes", "Writes waiting for the writer thread", db::getPendingWrites);
+        Metrics.REGISTRY.gauge("cc_cache_size", "Entities cached by JDA", "cache", this::getCacheSizes);
+
+        try {
+            MetricsServer server = new MetricsServer(settings.getMetricsAddress(), settings.getMetricsPort(), Metrics.REGISTRY);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "ChannelCloner-Metrics-Shutdown"));
+            LOGGER.info("Serving metrics on http://" + settings.getMetricsAddress() + ":" + settings.getMetricsPort() + "/metrics");
+        } catch (IOException e) {
+            LOGGER.warn("Cannot start the metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    private Map<String, Long> getCacheSizes() {
+        Map<String, Long> sizes = new HashMap<>();
+        if (shards == null) return sizes;
+
+        sizes.put("guilds", shards.getGuildCache().size());
+        sizes.put("voice_channels", shards.getVoiceChannelCache().size());
+        sizes.put("users", shards.getUserCache().size());
+        return sizes;
+    }
+
+    public Locale getLocale(DiscordLocale locale) {
+        Map<DiscordLocale, Locale> localizations = this.localizations;
 
-        return descriptions;
+        Locale localization = localizations.get(locale);
+        return localization != null ? localization : localizations.get(DiscordLocale.ENGLISH_US);
+    }
+
+    public Map<DiscordLocale, String> getCommandDescriptions(String id) {
+        return commandDescriptions.getOrDefault(id, Collections.emptyMap());
     }
 
     private void loadLocalizations() {
@@ -175,28 +363,11 @@ public class ChannelCloner {
             }
         }
 
-        File[] files = localizationsDir.listFiles();
-        if (files != null && files.length > 0) {
-            for (File file : files) {
-                if (!file.isFile() || !file.getName().toLowerCase().endsWith(".json")) continue;
-
-                try {
-                    Locale locale = gson.load(file, Locale.class);
-                    if (locale == null || locale.getLocale().equals(DiscordLocale.UNKNOWN)) continue;
-
-                    locale.init();
-                    gson.save(locale, file);
+        Map<DiscordLocale, Locale> loaded = readLocalizations(true);
 
-                    localizations.put(locale.getLocale(), locale);
-                } catch (Exception e) {
-                    LOGGER.warn("Cannot load localization " + file.getName() + ": " + e.getMessage());
-                }
-            }
-        }
-
-        if (localizations.isEmpty() || !localizations.containsKey(DiscordLocale.ENGLISH_US)) {
+        if (!loaded.containsKey(DiscordLocale.ENGLISH_US)) {
             Locale en = new Locale(DiscordLocale.ENGLISH_US).init();
-            localizations.put(en.getLocale(), en);
+            loaded.put(en.getLocale(), en);
 
             try {
                 gson.save(en, new File(localizationsDir, en.getLocale().getLocale() + ".json"));
@@ -206,6 +377,100 @@ public class ChannelCloner {
             }
         }
 
-        LOGGER.info("Loaded " + localizations.size() + " localizations");
+        setLocalizations(loaded);
+        LOGGER.info("Loaded " + loaded.size() + " localizations");
+    }
+
+    // Files are only saved back with the missing defaults on startup, saving them on a reload would trigger the watcher again
+    private Map<DiscordLocale, Locale> readLocalizations(boolean save) {
+        Map<DiscordLocale, Locale> loaded = new EnumMap<>(DiscordLocale.class);
+
+        File[] files = localizationsDir.listFiles();
+        if (files == null) return loaded;
+
+        for (File file : files) {
+            if (!file.isFile() || !file.getName().toLowerCase().endsWith(".json")) continue;
+
+            try {
+                Locale locale = gson.load(file, Locale.class);
+                if (locale == null || locale.getLocale().equals(DiscordLocale.UNKNOWN)) continue;
+
+                locale.init();
+                if (save) gson.save(locale, file);
+
+                loaded.put(locale.getLocale(), locale);
+            } catch (Exception e) {
+                LOGGER.warn("Cannot load localization " + file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        return loaded;
+    }
+
+    // Readers always see a complete set of localizations, a reload swaps the whole map
+    private void setLocalizations(Map<DiscordLocale, Locale> loaded) {
+        Map<String, Map<DiscordLocale, String>> descriptions = new HashMap<>();
+        loaded.forEach((discordLocale, locale) -> locale.commandDescriptions.forEach((id, description) ->
+                descriptions.computeIfAbsent(id, k -> new EnumMap<>(DiscordLocale.class)).put(discordLocale, description)));
+
+        commandDescriptions = descriptions;
+        localizations = loaded;
+    }
+
+    private void reloadLocalizations() {
+        Map<DiscordLocale, Locale> loaded = readLocalizations(false);
+        if (!loaded.containsKey(DiscordLocale.ENGLISH_US)) loaded.put(DiscordLocale.ENGLISH_US, new Locale(DiscordLocale.ENGLISH_US).init());
+
+        setLocalizations(loaded);
+        LOGGER.info("Reloaded " + loaded.size() + " localizations");
+
+        // Changed descriptions are sent to Discord, the hash skips reloads that did not touch them
+        if (shards != null) registerCommands();
+    }
+
+    private void watchLocalizations() {
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            localizationsDir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot watch the localizations directory, changes will need a restart: " + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                    // Editors write a file in several steps, the whole burst is handled by a single reload
+                    Thread.sleep(LOCALIZATIONS_RELOAD_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || event.context().toString().toLowerCase().endsWith(".json")) changed = true;
+                    }
+
+                    if (!key.reset()) {
+                        LOGGER.warn("The localizations directory is no longer available, changes will need a restart");
+                        return;
+                    }
+                } while ((key = watcher.poll()) != null);
+
+                if (!changed) continue;
+
+                try {
+                    reloadLocalizations();
+                } catch (Exception e) {
+                    LOGGER.warn("Cannot reload localizations: " + e.getMessage());
+                }
+            }
+        }, "ChannelCloner-Localizations");
+        thread.setDaemon(true);
+        thread.start();
     }
 }
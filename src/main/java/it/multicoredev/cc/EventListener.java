@@ -1,25 +1,30 @@
 package it.multicoredev.cc;
 
-import it.multicoredev.cc.storage.Database;
+import it.multicoredev.cc.metrics.Metrics;
 import it.multicoredev.cc.storage.Locale;
 import it.multicoredev.cc.storage.models.Clone;
-import it.multicoredev.cc.storage.models.SecondaryTemplate;
-import it.multicoredev.cc.storage.models.Template;
+import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.*;
 import net.dv8tion.jda.api.entities.channel.unions.GuildChannelUnion;
+import net.dv8tion.jda.api.events.ReadyEvent;
+import net.dv8tion.jda.api.events.ReconnectedEvent;
 import net.dv8tion.jda.api.events.guild.voice.GuildVoiceJoinEvent;
 import net.dv8tion.jda.api.events.guild.voice.GuildVoiceLeaveEvent;
 import net.dv8tion.jda.api.events.guild.voice.GuildVoiceMoveEvent;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
-import net.dv8tion.jda.api.exceptions.InsufficientPermissionException;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.interactions.InteractionHook;
 import net.dv8tion.jda.api.interactions.commands.OptionMapping;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static it.multicoredev.cc.ChannelCloner.LOGGER;
 
 /**
  * Copyright © 2021 - 2022 by Lorenzo Magni
@@ -48,11 +53,40 @@ public class EventListener extends ListenerAdapter {
         this.cc = cc;
     }
 
+    @Override
+    public void onReady(@NotNull ReadyEvent event) {
+        LOGGER.info("Shard " + event.getJDA().getShardInfo().getShardString() + " is ready with " + event.getGuildTotalCount() + " guilds");
+        cc.scaling().reseed(getGuildIds(event.getJDA()));
+    }
+
+    // A new session replaces the cache without replaying the voice events missed in between
+    @Override
+    public void onReconnected(@NotNull ReconnectedEvent event) {
+        LOGGER.info("Shard " + event.getJDA().getShardInfo().getShardString() + " reconnected with a new session");
+        cc.scaling().reseed(getGuildIds(event.getJDA()));
+    }
+
+    private static Set<Long> getGuildIds(JDA shard) {
+        return shard.getGuilds().stream().map(Guild::getIdLong).collect(Collectors.toSet());
+    }
+
     @Override
     public void onSlashCommandInteraction(@NotNull SlashCommandInteractionEvent event) {
         super.onSlashCommandInteraction(event);
 
+        long start = System.nanoTime();
+        try {
+            handleCommand(event);
+        } finally {
+            Metrics.EVENT_HANDLING.labels("slash_command").observeSince(start);
+        }
+    }
+
+    private void handleCommand(SlashCommandInteractionEvent event) {
         if (event.getGuild() == null || event.getMember() == null) return;
+        // Acknowledged right away, the answer is edited in once the command is done. Nothing below blocks the event thread.
+        event.deferReply(true).queue();
+
         Guild guild = event.getGuild();
         Member member = event.getMember();
         Locale locale = cc.getLocale(event.getUserLocale());
@@ -84,17 +118,17 @@ public class EventListener extends ListenerAdapter {
     }
 
     private void enable(SlashCommandInteractionEvent event, Guild guild, Locale locale) {
-        Database.Result result = cc.db().enableBot(guild, event.getChannel().asTextChannel());
-
-        if (result.isSuccess()) reply(event, locale.enabled);
-        else reply(event, locale.internalError.replace("{error}", result.getError()));
+        cc.db().enableBot(guild, event.getChannel().asTextChannel()).thenAccept(result -> {
+            if (result.isSuccess()) reply(event, locale.enabled);
+            else reply(event, locale.internalError(result.getError()));
+        });
     }
 
     private void disable(SlashCommandInteractionEvent event, Guild guild, Locale locale) {
-        Database.Result result = cc.db().disableBot(guild);
-
-        if (result.isSuccess()) reply(event, locale.disabled);
-        else reply(event, locale.internalError.replace("{error}", result.getError()));
+        cc.db().disableBot(guild).thenAccept(result -> {
+            if (result.isSuccess()) reply(event, locale.disabled);
+            else reply(event, locale.internalError(result.getError()));
+        });
     }
 
     private void info(SlashCommandInteractionEvent event, Guild guild, Locale locale) {
@@ -137,26 +171,16 @@ public class EventListener extends ListenerAdapter {
             return;
         }
 
-        Database.Result result = cc.db().registerTemplate(channel, name, secondary);
-
-        if (!result.isSuccess()) {
-            reply(event, locale.internalError.replace("{error}", result.getError()));
-            return;
-        }
-
-        if (secondary != null) {
-            result = cc.db().registerSecondaryTemplate(channel, secondary, secondaryName);
-
-            if (!result.isSuccess()) {
-                reply(event, locale.internalError.replace("{error}", result.getError()));
-                return;
-            }
-
-            reply(event, locale.templateRegisteredSecondary.replace("{name}", name).replace("{secondary}", secondaryName));
-            return;
-        }
-
-        reply(event, locale.templateRegistered.replace("{name}", name));
+        cc.db().registerTemplate(channel, name, secondary)
+                .thenCompose(result -> {
+                    if (!result.isSuccess() || secondary == null) return CompletableFuture.completedFuture(result);
+                    return cc.db().registerSecondaryTemplate(channel, secondary, secondaryName);
+                })
+                .thenAccept(result -> {
+                    if (!result.isSuccess()) reply(event, locale.internalError(result.getError()));
+                    else if (secondary != null) reply(event, locale.templateRegistered(name, secondaryName));
+                    else reply(event, locale.templateRegistered(name));
+                });
     }
 
     private void unregister(SlashCommandInteractionEvent event, Guild guild, Locale locale) {
@@ -167,21 +191,24 @@ public class EventListener extends ListenerAdapter {
             return;
         }
 
-        Database.Result result = cc.db().unregisterTemplate(channel);
-
-        if (!result.isSuccess()) {
-            reply(event, locale.internalError.replace("{error}", result.getError()));
-            return;
-        }
+        // The records of the clones are removed with the template, the channels are looked up before
+        List<Clone> clones = cc.db().getClones(channel);
+        cc.db().unregisterTemplate(channel).thenAccept(result -> {
+            if (!result.isSuccess()) {
+                reply(event, locale.internalError(result.getError()));
+                return;
+            }
 
-        if (result.getError() != null && result.getError().equals("primary")) {
-            deleteAllClones(channel);
-            reply(event, locale.templateUnregistered);
-        } else if (result.getError() != null && result.getError().equals("secondary")) {
-            reply(event, locale.templateUnregisteredSecondary);
-        } else {
-            reply(event, locale.templateNotRegistered);
-        }
+            if (result.getError() != null && result.getError().equals("primary")) {
+                deleteAllClones(channel.getGuild(), clones);
+                if (cc.predictor() != null) cc.predictor().forget(channel.getIdLong());
+                reply(event, locale.templateUnregistered);
+            } else if (result.getError() != null && result.getError().equals("secondary")) {
+                reply(event, locale.templateUnregisteredSecondary);
+            } else {
+                reply(event, locale.templateNotRegistered);
+            }
+        });
     }
 
     private String parseString(OptionMapping mapping) {
@@ -219,172 +246,43 @@ public class EventListener extends ListenerAdapter {
 
     @Override
     public void onGuildVoiceJoin(@NotNull GuildVoiceJoinEvent event) {
-        joinChannel(event.getChannelJoined());
+        long start = System.nanoTime();
+        cc.scaling().join(event.getGuild().getIdLong(), event.getChannelJoined().getIdLong(), event.getMember().getIdLong());
+        Metrics.EVENT_HANDLING.labels("voice_join").observeSince(start);
     }
 
     @Override
     public void onGuildVoiceLeave(@NotNull GuildVoiceLeaveEvent event) {
-        leaveChannel(event.getChannelLeft());
+        long start = System.nanoTime();
+        cc.scaling().leave(event.getGuild().getIdLong(), event.getChannelLeft().getIdLong(), event.getMember().getIdLong());
+        Metrics.EVENT_HANDLING.labels("voice_leave").observeSince(start);
     }
 
     @Override
     public void onGuildVoiceMove(@NotNull GuildVoiceMoveEvent event) {
-        joinChannel(event.getChannelJoined());
-        leaveChannel(event.getChannelLeft());
+        long start = System.nanoTime();
+        cc.scaling().join(event.getGuild().getIdLong(), event.getChannelJoined().getIdLong(), event.getMember().getIdLong());
+        cc.scaling().leave(event.getGuild().getIdLong(), event.getChannelLeft().getIdLong(), event.getMember().getIdLong());
+        Metrics.EVENT_HANDLING.labels("voice_move").observeSince(start);
     }
 
+    // Replies are removed by the shared timer, the message may already be gone if the user dismissed it
     private void reply(SlashCommandInteractionEvent event, String message, int delay) {
-        event.reply(message).complete().deleteOriginal().queueAfter(delay, TimeUnit.SECONDS);
+        InteractionHook hook = event.getHook();
+        hook.editOriginal(message).queue(sent -> cc.timer().schedule(() -> hook.deleteOriginal().queue(null, ignored -> {}), delay, TimeUnit.SECONDS));
     }
 
     private void reply(SlashCommandInteractionEvent event, String message) {
         reply(event, message, 8);
     }
 
-    private void deleteAllClones(AudioChannel channel) {
-        cc.db().getClones(channel).forEach(clone -> {
-            VoiceChannel vc = channel.getGuild().getVoiceChannelById(clone.getId());
+    private void deleteAllClones(Guild guild, List<Clone> clones) {
+        clones.forEach(clone -> {
+            VoiceChannel vc = guild.getVoiceChannelById(clone.getId());
             if (vc != null) vc.delete().queue();
-        });
-    }
-
-    private void joinChannel(AudioChannel channel) {
-        if (!cc.db().isEnabled(channel.getGuild())) return;
-        if (!cc.db().isRegistered(channel)) return;
-
-        Template template = cc.db().getTemplate(channel);
-        if (template == null) return;
-
-        VoiceChannel templateChannel = getChannel(template.getGuild(), template.getId());
-        if (templateChannel == null) return;
 
-        List<Clone> clones = cc.db().getClones(templateChannel);
-
-        long occupiedChannels = clones.stream().filter(this::hasMembers).count() + (templateChannel.getMembers().isEmpty() ? 0 : 1);
-        if (occupiedChannels < clones.size() + 1) return;
-
-        int number = getCloneNumber(clones);
-
-        try {
-            VoiceChannel clone = templateChannel
-                    .createCopy()
-                    .setPosition(templateChannel.getPosition())
-                    .setName(template.getName().replace("%d", String.valueOf(number)))
-                    .complete();
-
-            VoiceChannel secondaryClone = null;
-            if (template.getSecondary() != null) {
-                VoiceChannel secondaryChannel = getChannel(channel.getGuild().getId(), template.getSecondary());
-
-                SecondaryTemplate secondaryTemplate = cc.db().getSecondaryTemplate(template.getGuild(), template.getSecondary());
-                if (secondaryTemplate != null) {
-                    if (secondaryChannel != null) {
-                        secondaryClone = secondaryChannel
-                                .createCopy()
-                                .setPosition(secondaryChannel.getPosition())
-                                .setName(secondaryTemplate.getName().replace("%d", String.valueOf(number)))
-                                .complete();
-                    }
-                }
-            }
-
-            cc.db().addClone(clone, templateChannel, secondaryClone, number);
-        } catch (InsufficientPermissionException e) {
-            try {
-                TextChannel errorChannel = channel.getGuild().getTextChannelById(cc.db().getChannel(channel.getGuild()));
-                if (errorChannel == null) return;
-
-                errorChannel.sendMessage(cc.getLocale(channel.getGuild().getLocale()).insufficientBotPerms).queue();
-            } catch (Exception ignored) {
-            }
-        }
-    }
-
-    private void leaveChannel(AudioChannel channel) {
-        if (!cc.db().isRegistered(channel)) return;
-
-        Template template = cc.db().getTemplate(channel);
-        if (template == null) return;
-
-        VoiceChannel templateChannel = getChannel(template.getGuild(), template.getId());
-        if (templateChannel == null) return;
-
-        List<Clone> clones = cc.db().getClones(templateChannel);
-        if (clones.isEmpty()) return;
-
-        long occupiedChannels = clones.stream().filter(this::hasMembers).count() + (templateChannel.getMembers().isEmpty() ? 0 : 1);
-        if (occupiedChannels >= clones.size()) return;
-
-        Collections.sort(clones);
-        Collections.reverse(clones);
-
-        try {
-            for (Clone clone : clones) {
-                if (clone.getNumber() == 1) continue;
-
-                VoiceChannel vc = getChannel(clone);
-                if (vc != null && vc.getMembers().isEmpty()) {
-                    vc.delete().queue();
-
-                    if (clone.getSecondary() != null) {
-                        VoiceChannel svc = getChannel(clone.getGuild(), clone.getSecondary());
-                        if (svc != null) svc.delete().queue();
-                    }
-
-                    cc.db().removeClone(clone);
-                    break;
-                }
-            }
-        } catch (InsufficientPermissionException e) {
-            try {
-                TextChannel errorChannel = channel.getGuild().getTextChannelById(cc.db().getChannel(channel.getGuild()));
-                if (errorChannel == null) return;
-
-                errorChannel.sendMessage(cc.getLocale(channel.getGuild().getLocale()).insufficientBotPerms).queue();
-            } catch (Exception ignored) {
-            }
-        }
-    }
-
-    private VoiceChannel getChannel(Clone clone) {
-        if (clone.getGuild() == null) return null;
-
-        Guild guild = cc.jda().getGuildById(clone.getGuild());
-        if (guild == null) return null;
-
-        return guild.getVoiceChannelById(clone.getId());
-    }
-
-    private VoiceChannel getChannel(String guild, String channel) {
-        if (guild == null || channel == null) return null;
-
-        Guild g = cc.jda().getGuildById(guild);
-        if (g == null) return null;
-
-        return g.getVoiceChannelById(channel);
-    }
-
-    private boolean hasMembers(Clone clone) {
-        AudioChannel channel = getChannel(clone);
-        if (channel == null) return false;
-
-        return channel.getMembers().size() > 0;
-    }
-
-    private int getCloneNumber(List<Clone> clones) {
-        for (int i = 2; i < Integer.MAX_VALUE; i++) {
-            boolean found = false;
-
-            for (Clone clone : clones) {
-                if (clone.getNumber() == i) {
-                    found = true;
-                    break;
-                }
-            }
-
-            if (!found) return i;
-        }
-
-        return -1;
+            VoiceChannel secondary = clone.hasSecondary() ? guild.getVoiceChannelById(clone.getSecondary()) : null;
+            if (secondary != null) secondary.delete().queue();
+        });
     }
 }
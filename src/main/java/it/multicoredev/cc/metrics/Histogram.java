@@ -0,0 +1,103 @@
+package it.multicoredev.cc.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class Histogram {
+    // Log-linear buckets like HdrHistogram: every power of two between ~1 µs and ~69 s is split in 4 sub-buckets,
+    // so the relative error stays under 25% with a fixed array of counters and no locking when recording.
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MIN_EXPONENT = 10;
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void observe(long nanos) {
+        if (nanos < 0) nanos = 0;
+
+        counts.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public void observeSince(long start) {
+        observe(System.nanoTime() - start);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // Upper bound of the bucket holding the given quantile, in nanoseconds
+    public long getPercentile(double quantile) {
+        long total = getCount();
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(1, rank)) return Math.min(upperBound(i), getMax());
+        }
+
+        return getMax();
+    }
+
+    long getBucket(int index) {
+        return counts.get(index);
+    }
+
+    static int index(long value) {
+        if (value < (1L << MIN_EXPONENT)) return 0;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) return BUCKETS - 1;
+
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    // Values in the last bucket have no upper bound
+    static long upperBound(int index) {
+        if (index >= BUCKETS - 1) return Long.MAX_VALUE;
+
+        int exponent = MIN_EXPONENT + index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,148 @@
+package it.multicoredev.cc.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class MetricRegistry {
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+
+    public Counter counter(String name, String help) {
+        Counter counter = new Counter();
+        register(name, help, "counter", out -> writeSample(out, name, "", counter.get()));
+        return counter;
+    }
+
+    public LabeledMetric<Counter> counter(String name, String help, String label) {
+        LabeledMetric<Counter> counters = new LabeledMetric<>(label, Counter::new);
+        register(name, help, "counter", out -> counters.forEach((value, counter) -> writeSample(out, name, labels(label, value), counter.get())));
+        return counters;
+    }
+
+    public Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        register(name, help, "histogram", out -> writeHistogram(out, name, "", histogram));
+        return histogram;
+    }
+
+    public LabeledMetric<Histogram> histogram(String name, String help, String label) {
+        LabeledMetric<Histogram> histograms = new LabeledMetric<>(label, Histogram::new);
+        register(name, help, "histogram", out -> histograms.forEach((value, histogram) -> writeHistogram(out, name, labels(label, value), histogram)));
+        return histograms;
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value) {
+        register(name, help, "gauge", out -> writeSample(out, name, "", value.getAsDouble()));
+    }
+
+    // The values are computed on every scrape, so the supplier should only read state that is already kept up to date
+    public void gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+        register(name, help, "gauge", out -> values.get().forEach((value, number) -> writeSample(out, name, labels(label, value), number.doubleValue())));
+    }
+
+    // Prometheus text exposition format 0.0.4
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+
+        for (Entry entry : entries) {
+            out.append("# HELP ").append(entry.name).append(' ').append(entry.help).append('\n');
+            out.append("# TYPE ").append(entry.name).append(' ').append(entry.type).append('\n');
+
+            try {
+                entry.writer.write(out);
+            } catch (RuntimeException e) {
+                out.append("# ").append(entry.name).append(" failed: ").append(e.getMessage()).append('\n');
+            }
+        }
+
+        return out.toString();
+    }
+
+    private void register(String name, String help, String type, Writer writer) {
+        entries.add(new Entry(name, help, type, writer));
+    }
+
+    private static String labels(String label, String value) {
+        StringBuilder sb = new StringBuilder(label).append("=\"");
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else sb.append(c);
+        }
+
+        return sb.append('"').toString();
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ');
+
+        if (value == Math.rint(value) && !Double.isInfinite(value)) out.append((long) value);
+        else out.append(value);
+
+        out.append('\n');
+    }
+
+    // Buckets are exported in seconds and cumulative, empty buckets below the first sample are skipped
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+
+        for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+            cumulative += histogram.getBucket(i);
+            if (cumulative == 0) continue;
+
+            out.append(name).append("_bucket{").append(prefix).append("le=\"")
+                    .append(Histogram.upperBound(i) / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+
+        long count = histogram.getCount();
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(Math.max(count, cumulative)).append('\n');
+        writeSample(out, name + "_sum", labels, histogram.getSum() / 1e9);
+        writeSample(out, name + "_count", labels, count);
+    }
+
+    @FunctionalInterface
+    private interface Writer {
+        void write(StringBuilder out);
+    }
+
+    private static class Entry {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final Writer writer;
+
+        private Entry(String name, String help, String type, Writer writer) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.writer = writer;
+        }
+    }
+}
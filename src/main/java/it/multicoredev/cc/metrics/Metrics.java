@@ -0,0 +1,69 @@
+package it.multicoredev.cc.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public final class Metrics {
+    public static final MetricRegistry REGISTRY = new MetricRegistry();
+
+    public static final LabeledMetric<Histogram> EVENT_HANDLING = REGISTRY.histogram("cc_event_handling_seconds",
+            "Time spent in the listener for a gateway event", "event");
+    public static final Histogram JOIN_TO_CLONE = REGISTRY.histogram("cc_join_to_clone_seconds",
+            "Time from a voice join that asked for a clone to the clone being stored");
+    public static final Histogram CLONE_CREATE = REGISTRY.histogram("cc_clone_create_seconds",
+            "Time to copy the template channels and store the clone");
+    public static final Histogram CLONE_DELETE = REGISTRY.histogram("cc_clone_delete_seconds",
+            "Time to delete a clone once its grace period expired");
+    public static final Counter CLONE_FAILURES = REGISTRY.counter("cc_clone_failures_total",
+            "Clones that could not be created or stored");
+
+    public static final LabeledMetric<Histogram> DB_WRITE = REGISTRY.histogram("cc_db_write_seconds",
+            "Time from submitting a write to its commit, by Database method", "method");
+    public static final Counter DB_STATEMENTS = REGISTRY.counter("cc_db_statements_total",
+            "SQLite statements executed by writes");
+    public static final Histogram DB_COMMIT = REGISTRY.histogram("cc_db_commit_seconds",
+            "Time to apply and commit a batch of writes");
+
+    public static final Counter PREDICTION_SLOTS = REGISTRY.counter("cc_prediction_slots_total",
+            "Occupancy history slots closed with a learned prediction to compare against");
+    public static final Counter PREDICTION_ERROR = REGISTRY.counter("cc_prediction_error_channels_total",
+            "Difference between the predicted and the actual peak of occupied channels, summed over the closed slots");
+
+    // Rate limit buckets are handled inside JDA, waiting on them shows up as REST latency
+    public static final AtomicInteger REST_IN_FLIGHT = new AtomicInteger();
+    // Shared by every action queue, so the gauge is only registered once
+    public static final AtomicInteger REST_QUEUED = new AtomicInteger();
+    public static final LabeledMetric<Histogram> REST = REGISTRY.histogram("cc_rest_seconds",
+            "Time from submitting a REST call to Discord's answer, including rate limit waits", "action");
+    public static final Histogram REST_QUEUE_WAIT = REGISTRY.histogram("cc_rest_queue_wait_seconds",
+            "Time a channel operation waited in its guild queue before being sent");
+    public static final Counter REST_COALESCED = REGISTRY.counter("cc_rest_coalesced_total",
+            "Channel operations dropped because they cancelled each other out");
+
+    static {
+        REGISTRY.gauge("cc_rest_in_flight", "REST calls waiting for an answer", REST_IN_FLIGHT::get);
+        REGISTRY.gauge("cc_rest_queued", "Channel operations waiting in the per-guild queues", REST_QUEUED::get);
+    }
+
+    private Metrics() {
+    }
+}
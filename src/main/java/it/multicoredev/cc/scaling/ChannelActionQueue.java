@@ -0,0 +1,280 @@
+package it.multicoredev.cc.scaling;
+
+import it.multicoredev.cc.metrics.Metrics;
+import it.multicoredev.cc.utils.LongObjectMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class ChannelActionQueue {
+    // Channel creations of a guild share the guild's rate limit bucket, so they are sent one at a time.
+    private static final int MAX_CREATES_IN_FLIGHT = 1;
+
+    private final int maxInFlight;
+    private final int guildMaxInFlight;
+    private final LongToIntFunction weights;
+    private final LongObjectMap<GuildQueue> guilds = new LongObjectMap<>();
+    // Guilds with something to send, served in deficit round robin order
+    private final Deque<GuildQueue> active = new ArrayDeque<>();
+    private int inFlight;
+    private boolean dispatching;
+
+    // Every guild gets "weight" operations per round and never more than guildMaxInFlight at once, so a burst in a big
+    // guild only delays its own operations once the shared maxInFlight is reached.
+    public ChannelActionQueue(int maxInFlight, int guildMaxInFlight, LongToIntFunction weights) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.guildMaxInFlight = Math.max(1, guildMaxInFlight);
+        this.weights = weights;
+    }
+
+    public <T> CompletableFuture<T> create(long guild, long template, Supplier<CompletableFuture<T>> request) {
+        return enqueue(guild, new Action<>(true, template, 0, request));
+    }
+
+    public <T> CompletableFuture<T> delete(long guild, long template, long clone, Supplier<CompletableFuture<T>> request) {
+        return enqueue(guild, new Action<>(false, template, clone, request));
+    }
+
+    // Demand for a new clone while one of the template's clones is still waiting to be deleted: the deletion is dropped
+    // and the clone is kept instead. Returns the kept clone, or 0 if every deletion was already sent.
+    public long keepQueuedDeletion(long guild, long template) {
+        Action<?> action = cancel(guild, false, template, 0);
+        return action != null ? action.clone : 0;
+    }
+
+    public boolean cancelDeletion(long guild, long template, long clone) {
+        return cancel(guild, false, template, clone) != null;
+    }
+
+    // A clone about to be deleted while a creation for the same template has not been sent yet: both are dropped.
+    public boolean cancelCreation(long guild, long template) {
+        return cancel(guild, true, template, 0) != null;
+    }
+
+    private <T> CompletableFuture<T> enqueue(long guild, Action<T> action) {
+        synchronized (this) {
+            GuildQueue queue = guilds.computeIfAbsent(guild, GuildQueue::new);
+
+            if (action.create) queue.creates.add(action);
+            else queue.deletes.add(action);
+
+            activate(queue);
+        }
+
+        Metrics.REST_QUEUED.incrementAndGet();
+        dispatch();
+        return action.future;
+    }
+
+    // Only actions that were not sent yet can be cancelled, the most recent one is dropped first
+    private Action<?> cancel(long guild, boolean create, long template, long clone) {
+        Action<?> cancelled = null;
+
+        synchronized (this) {
+            GuildQueue queue = guilds.get(guild);
+            if (queue == null) return null;
+
+            Iterator<Action<?>> it = (create ? queue.creates : queue.deletes).descendingIterator();
+            while (it.hasNext()) {
+                Action<?> action = it.next();
+                if (action.template != template || (clone != 0 && clone != action.clone)) continue;
+
+                it.remove();
+                cancelled = action;
+                break;
+            }
+
+            prune(queue);
+        }
+
+        if (cancelled == null) return null;
+
+        Metrics.REST_QUEUED.decrementAndGet();
+        Metrics.REST_COALESCED.inc();
+        cancelled.future.cancel(false);
+        return cancelled;
+    }
+
+    private void activate(GuildQueue queue) {
+        if (queue.active || queue.next(guildMaxInFlight) == null) return;
+
+        queue.active = true;
+        active.add(queue);
+    }
+
+    // Guilds are only kept while they have something queued or in flight
+    private void prune(GuildQueue queue) {
+        if (!queue.active && queue.isIdle()) guilds.remove(queue.guild);
+    }
+
+    // A single caller drains the queue in a loop, requests that complete right away call back in here and only leave
+    // their slot to the loop, instead of recursing through send. The loop stops once a pass under the lock finds
+    // nothing to send, so any later change sees dispatching cleared and starts a new one.
+    private void dispatch() {
+        synchronized (this) {
+            if (dispatching) return;
+            dispatching = true;
+        }
+
+        List<Action<?>> ready = new ArrayList<>();
+        List<GuildQueue> owners = new ArrayList<>();
+
+        while (true) {
+            ready.clear();
+            owners.clear();
+
+            synchronized (this) {
+                collect(ready, owners);
+
+                if (ready.isEmpty()) {
+                    dispatching = false;
+                    return;
+                }
+            }
+
+            for (int i = 0; i < ready.size(); i++) send(owners.get(i), ready.get(i));
+        }
+    }
+
+    // Guarded by the lock, hands out the next actions in deficit round robin order
+    private void collect(List<Action<?>> ready, List<GuildQueue> owners) {
+        while (inFlight < maxInFlight && !active.isEmpty()) {
+            GuildQueue queue = active.poll();
+            if (!queue.resumed) queue.deficit += Math.max(1, weights.applyAsInt(queue.guild));
+            queue.resumed = false;
+
+            Action<?> action;
+            while (queue.deficit >= 1 && inFlight < maxInFlight && (action = queue.next(guildMaxInFlight)) != null) {
+                queue.take(action);
+                queue.deficit--;
+                inFlight++;
+                ready.add(action);
+                owners.add(queue);
+            }
+
+            if (queue.next(guildMaxInFlight) == null) {
+                // Nothing left to send, or the guild reached its own cap: it comes back when an operation completes
+                queue.active = false;
+                queue.deficit = 0;
+                prune(queue);
+            } else if (queue.deficit >= 1) {
+                // The shared cap was reached in the middle of the guild's turn, it goes on from here next time
+                queue.resumed = true;
+                active.addFirst(queue);
+            } else {
+                active.add(queue);
+            }
+        }
+    }
+
+    private <T> void send(GuildQueue queue, Action<T> action) {
+        Metrics.REST_QUEUED.decrementAndGet();
+        Metrics.REST_QUEUE_WAIT.observeSince(action.queued);
+
+        CompletableFuture<T> request;
+        try {
+            request = action.request.get();
+        } catch (Exception e) {
+            request = new CompletableFuture<>();
+            request.completeExceptionally(e);
+        }
+
+        request.whenComplete((value, error) -> {
+            synchronized (this) {
+                queue.done(action);
+                inFlight--;
+                activate(queue);
+                prune(queue);
+            }
+
+            if (error != null) action.future.completeExceptionally(error);
+            else action.future.complete(value);
+
+            dispatch();
+        });
+    }
+
+    // Guarded by the ChannelActionQueue lock
+    private static class GuildQueue {
+        private final long guild;
+        private final Deque<Action<?>> creates = new ArrayDeque<>();
+        private final Deque<Action<?>> deletes = new ArrayDeque<>();
+        private int createsInFlight;
+        private int deletesInFlight;
+        private int deficit;
+        private boolean active;
+        private boolean resumed;
+
+        private GuildQueue(long guild) {
+            this.guild = guild;
+        }
+
+        // Creations go first, they are what members are waiting for
+        private Action<?> next(int maxInFlight) {
+            if (createsInFlight + deletesInFlight >= maxInFlight) return null;
+            if (createsInFlight < MAX_CREATES_IN_FLIGHT && !creates.isEmpty()) return creates.peek();
+            return deletes.peek();
+        }
+
+        private void take(Action<?> action) {
+            if (action.create) {
+                creates.remove(action);
+                createsInFlight++;
+            } else {
+                deletes.remove(action);
+                deletesInFlight++;
+            }
+        }
+
+        private void done(Action<?> action) {
+            if (action.create) createsInFlight--;
+            else deletesInFlight--;
+        }
+
+        private boolean isIdle() {
+            return creates.isEmpty() && deletes.isEmpty() && createsInFlight + deletesInFlight == 0;
+        }
+    }
+
+    private static class Action<T> {
+        private final boolean create;
+        private final long template;
+        private final long clone;
+        private final Supplier<CompletableFuture<T>> request;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final long queued = System.nanoTime();
+
+        private Action(boolean create, long template, long clone, Supplier<CompletableFuture<T>> request) {
+            this.create = create;
+            this.template = template;
+            this.clone = clone;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package it.multicoredev.cc.scaling;
+
+import it.multicoredev.cc.ChannelCloner;
+import it.multicoredev.cc.metrics.Metrics;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.VoiceChannel;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
+import net.dv8tion.jda.api.requests.ErrorResponse;
+import net.dv8tion.jda.api.requests.RestAction;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class JdaChannelGateway implements ChannelGateway {
+    private final ChannelCloner cc;
+
+    public JdaChannelGateway(ChannelCloner cc) {
+        this.cc = cc;
+    }
+
+    @Override
+    public long[] getMembers(long guild, long channel) {
+        VoiceChannel voiceChannel = getChannel(guild, channel);
+        if (voiceChannel == null) return null;
+
+        List<Member> members = voiceChannel.getMembers();
+        long[] connected = new long[members.size()];
+        for (int i = 0; i < connected.length; i++) connected[i] = members.get(i).getIdLong();
+
+        return connected;
+    }
+
+    @Override
+    public CompletableFuture<Long> copyChannel(long guild, long channel, String name) {
+        try {
+            VoiceChannel voiceChannel = getChannel(guild, channel);
+            if (voiceChannel == null) throw new IllegalStateException("Channel " + channel + " does not exist");
+
+            return rest("create_channel", voiceChannel.createCopy()
+                    .setPosition(voiceChannel.getPosition())
+                    .setName(name))
+                    .thenApply(VoiceChannel::getIdLong);
+        } catch (Exception e) {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteChannel(long guild, long channel) {
+        VoiceChannel voiceChannel = getChannel(guild, channel);
+        if (voiceChannel == null) return CompletableFuture.completedFuture(null);
+
+        // delete() checks the permissions before sending anything and throws, callers only expect failed futures.
+        // A channel deleted by someone else in the meantime counts as deleted.
+        try {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            rest("delete_channel", voiceChannel.delete()).whenComplete((ignored, error) -> {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+
+                if (cause == null || (cause instanceof ErrorResponseException && ((ErrorResponseException) cause).getErrorResponse() == ErrorResponse.UNKNOWN_CHANNEL)) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(cause);
+                }
+            });
+            return future;
+        } catch (Exception e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    @Override
+    public void notifyInsufficientPermissions(long guild) {
+        try {
+            Guild g = cc.getGuildById(guild);
+            if (g == null) return;
+
+            TextChannel errorChannel = g.getTextChannelById(cc.db().getChannel(g));
+            if (errorChannel == null) return;
+
+            errorChannel.sendMessage(cc.getLocale(g.getLocale()).insufficientBotPerms).queue();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private <T> CompletableFuture<T> rest(String action, RestAction<T> request) {
+        long start = System.nanoTime();
+        CompletableFuture<T> future = request.submit();
+        Metrics.REST_IN_FLIGHT.incrementAndGet();
+
+        return future.whenComplete((value, error) -> {
+            Metrics.REST_IN_FLIGHT.decrementAndGet();
+            Metrics.REST.labels(action).observeSince(start);
+        });
+    }
+
+    private VoiceChannel getChannel(long guild, long channel) {
+        if (guild == 0 || channel == 0) return null;
+
+        Guild g = cc.getGuildById(guild);
+        if (g == null) return null;
+
+        return g.getVoiceChannelById(channel);
+    }
+}
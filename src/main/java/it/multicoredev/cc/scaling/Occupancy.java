@@ -0,0 +1,75 @@
+package it.multicoredev.cc.scaling;
+
+import it.multicoredev.cc.utils.LongLongMap;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class Occupancy {
+    // Member to the channel it is connected to, and channel to the number of connected members
+    private final LongLongMap members = new LongLongMap();
+    private final LongLongMap counts = new LongLongMap();
+
+    // Members are tracked by id so replaying an event that is already in the cache does not count twice.
+    public void join(long channel, long member) {
+        long previous = members.get(member, 0);
+        if (previous == channel) return;
+
+        if (previous != 0) decrement(previous);
+        members.put(member, channel);
+        counts.addTo(channel, 1);
+    }
+
+    public void leave(long channel, long member) {
+        if (members.get(member, 0) != channel) return;
+
+        members.remove(member);
+        decrement(channel);
+    }
+
+    public void seed(long channel, long[] connected) {
+        remove(channel);
+        for (long member : connected) join(channel, member);
+    }
+
+    public void remove(long channel) {
+        if (!counts.remove(channel)) return;
+        for (long member : members.keys()) {
+            if (members.get(member, 0) == channel) members.remove(member);
+        }
+    }
+
+    public void clear() {
+        members.clear();
+        counts.clear();
+    }
+
+    public boolean isOccupied(long channel) {
+        return counts.containsKey(channel);
+    }
+
+    public int getOccupied() {
+        return counts.size();
+    }
+
+    private void decrement(long channel) {
+        if (counts.addTo(channel, -1) <= 0) counts.remove(channel);
+    }
+}
@@ -0,0 +1,98 @@
+package it.multicoredev.cc.scaling;
+
+import it.multicoredev.cc.ChannelCloner;
+import it.multicoredev.cc.metrics.Metrics;
+import it.multicoredev.cc.storage.OccupancyHistory;
+import it.multicoredev.cc.storage.models.Template;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static it.multicoredev.cc.ChannelCloner.LOGGER;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class Predictor {
+    private final ChannelCloner cc;
+    private final ScalingEngine engine;
+    private final OccupancyHistory history;
+
+    public Predictor(ChannelCloner cc, ScalingEngine engine, OccupancyHistory history) {
+        this.cc = cc;
+        this.engine = engine;
+        this.history = history;
+    }
+
+    public void start() {
+        cc.timer().schedule(this::sampleAll, 1, TimeUnit.MINUTES);
+    }
+
+    // Runs after any sample of the template already queued, so its history is not written again once deleted
+    public void forget(long template) {
+        engine.submit(template, () -> history.remove(template));
+    }
+
+    // Every template is sampled once a minute on its own mailbox, where its occupancy lives
+    private void sampleAll() {
+        try {
+            cc.db().getTemplates().forEach(template -> engine.submit(template.getId(), () -> sample(template)));
+        } finally {
+            start();
+        }
+    }
+
+    private void sample(Template template) {
+        TemplateState state = engine.getState(template.getId());
+        if (!state.isSeeded()) return;
+
+        long now = System.currentTimeMillis();
+        int occupied = state.getOccupancy().getOccupied();
+        float predicted;
+
+        try {
+            int[] closed = history.record(template.getId(), now, occupied);
+            if (closed != null) {
+                Metrics.PREDICTION_SLOTS.inc();
+                Metrics.PREDICTION_ERROR.inc(Math.abs(closed[0] - closed[1]));
+            }
+
+            predicted = history.predict(template.getId(), now, TimeUnit.MINUTES.toMillis(cc.settings().getPredictionLead()));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot update the occupancy history of template " + template.getId() + ": " + e.getMessage());
+            return;
+        }
+
+        int peak = predicted < 0 ? 0 : Math.round(predicted);
+        if (peak == state.getPredictedPeak()) return;
+
+        int extra = Math.max(0, peak - occupied);
+        state.setPredictedPeak(peak);
+
+        if (cc.settings().isPredictionDryRun()) {
+            LOGGER.info("[Dry run] Template " + template.getId() + " would keep " + extra + " extra channels for a predicted peak of " +
+                    peak + " occupied channels (now " + occupied + ")");
+            return;
+        }
+
+        LOGGER.info("Template " + template.getId() + " keeps " + extra + " extra channels for a predicted peak of " + peak + " occupied channels");
+        engine.rebalance(template.getId(), template.getGuild(), 0);
+    }
+}
@@ -0,0 +1,167 @@
+package it.multicoredev.cc.scaling;
+
+import it.multicoredev.cc.ChannelCloner;
+import it.multicoredev.cc.storage.models.Clone;
+import it.multicoredev.cc.storage.models.Template;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.VoiceChannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static it.multicoredev.cc.ChannelCloner.LOGGER;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class Reconciler {
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final ChannelCloner cc;
+    private final ScalingEngine engine;
+    private final AtomicInteger guildsDone = new AtomicInteger();
+    private final AtomicInteger clonesChecked = new AtomicInteger();
+    private final AtomicInteger recordsRemoved = new AtomicInteger();
+    private final AtomicInteger channelsDeleted = new AtomicInteger();
+    private final AtomicLong lastProgress = new AtomicLong();
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> tasks = new ConcurrentLinkedQueue<>();
+
+    public Reconciler(ChannelCloner cc, ScalingEngine engine) {
+        this.cc = cc;
+        this.engine = engine;
+    }
+
+    // Brings the clones table back in line with the guilds after a restart: records of channels deleted by hand are
+    // dropped and empty clones above the warm pool are deleted. Each template is fixed on its own mailbox.
+    public void run() {
+        long start = System.nanoTime();
+        lastProgress.set(start);
+
+        Map<Long, List<Clone>> clones = cc.db().getClones().stream().collect(Collectors.groupingBy(Clone::getGuild));
+        List<Guild> guilds = cc.shards().getGuilds().stream().filter(guild -> clones.containsKey(guild.getIdLong())).collect(Collectors.toList());
+        LOGGER.info("Reconciling " + clones.values().stream().mapToInt(List::size).sum() + " clones in " + guilds.size() + " guilds...");
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.submit(() -> guilds.parallelStream().forEach(guild -> {
+                reconcile(guild, clones.get(guild.getIdLong()));
+                reportProgress(guilds.size());
+            })).join();
+        } finally {
+            pool.shutdown();
+        }
+
+        long scanned = System.nanoTime();
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        long end = System.nanoTime();
+
+        LOGGER.info("Reconciliation completed in " + TimeUnit.NANOSECONDS.toMillis(end - start) + "ms " +
+                "(scan " + TimeUnit.NANOSECONDS.toMillis(scanned - start) + "ms, fixes " + TimeUnit.NANOSECONDS.toMillis(end - scanned) + "ms): " +
+                clonesChecked.get() + " clones checked, " +
+                recordsRemoved.get() + " records removed, " +
+                channelsDeleted.get() + " channels deleted");
+    }
+
+    private void reconcile(Guild guild, List<Clone> clones) {
+        Map<Long, List<Clone>> byTemplate = clones.stream().collect(Collectors.groupingBy(Clone::getTemplate));
+
+        byTemplate.forEach((template, templateClones) -> {
+            CompletableFuture<Void> task = new CompletableFuture<>();
+            tasks.add(task);
+
+            engine.submit(template, () -> {
+                try {
+                    reconcile(guild, template, templateClones).whenComplete((ignored, error) -> task.complete(null));
+                } catch (Exception e) {
+                    LOGGER.warn("Cannot reconcile template " + template + ": " + e.getMessage());
+                    task.complete(null);
+                }
+            });
+        });
+
+        guildsDone.incrementAndGet();
+    }
+
+    // Completes once every deletion it queued is done
+    private CompletableFuture<Void> reconcile(Guild guild, long templateId, List<Clone> clones) {
+        Template template = cc.db().getTemplate(templateId, guild.getIdLong());
+        TemplateState state = engine.getState(templateId);
+        List<Clone> removed = new ArrayList<>();
+        List<Clone> empty = new ArrayList<>();
+
+        for (Clone clone : clones) {
+            clonesChecked.incrementAndGet();
+            VoiceChannel channel = guild.getVoiceChannelById(clone.getId());
+
+            if (channel == null) {
+                removed.add(clone);
+            } else if (channel.getMembers().isEmpty()) {
+                if (template == null) {
+                    removed.add(clone);
+                } else if (!state.isPendingDeletion(clone.getId())) {
+                    empty.add(clone);
+                }
+            }
+        }
+
+        if (template != null) {
+            VoiceChannel templateChannel = guild.getVoiceChannelById(template.getId());
+            int emptyChannels = empty.size() + (templateChannel != null && templateChannel.getMembers().isEmpty() ? 1 : 0);
+            int excess = emptyChannels - cc.settings().getWarmPool(templateId);
+
+            empty.sort(Collections.reverseOrder());
+            for (int i = 0; i < excess && i < empty.size(); i++) removed.add(empty.get(i));
+        }
+
+        // Records of channels deleted by hand go through the engine as well, their secondary may still be there
+        List<CompletableFuture<Boolean>> deletions = new ArrayList<>(removed.size());
+        for (Clone clone : removed) {
+            int channels = (guild.getVoiceChannelById(clone.getId()) != null ? 1 : 0) +
+                    (clone.hasSecondary() && guild.getVoiceChannelById(clone.getSecondary()) != null ? 1 : 0);
+
+            deletions.add(engine.deleteOrphan(clone).thenApply(deleted -> {
+                if (deleted) {
+                    recordsRemoved.incrementAndGet();
+                    channelsDeleted.addAndGet(channels);
+                }
+                return deleted;
+            }));
+        }
+
+        return CompletableFuture.allOf(deletions.toArray(new CompletableFuture[0]));
+    }
+
+    private void reportProgress(int total) {
+        long now = System.nanoTime();
+        long last = lastProgress.get();
+        if (now - last < PROGRESS_INTERVAL || !lastProgress.compareAndSet(last, now)) return;
+
+        LOGGER.info("Reconciled " + guildsDone.get() + "/" + total + " guilds (" + clonesChecked.get() + " clones checked)");
+    }
+}
@@ -0,0 +1,418 @@
+package it.multicoredev.cc.scaling;
+
+import it.multicoredev.cc.metrics.Metrics;
+import it.multicoredev.cc.storage.Database;
+import it.multicoredev.cc.storage.Settings;
+import it.multicoredev.cc.storage.models.Clone;
+import it.multicoredev.cc.storage.models.SecondaryTemplate;
+import it.multicoredev.cc.storage.models.Template;
+import it.multicoredev.cc.utils.TimerWheel;
+import net.dv8tion.jda.api.exceptions.InsufficientPermissionException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.multicoredev.cc.ChannelCloner.LOGGER;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class ScalingEngine {
+    private final Settings settings;
+    private final Database db;
+    private final TimerWheel timer;
+    private final ChannelGateway gateway;
+    private final ExecutorService executor;
+    private final Map<Long, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final Map<Long, TemplateState> states = new ConcurrentHashMap<>();
+    private final ChannelActionQueue actions;
+    private volatile boolean warm;
+
+    // Channels are only reached through the gateway, so the engine can run against a fake guild without Discord.
+    // A null executor starts a platform thread per core.
+    public ScalingEngine(Settings settings, Database db, TimerWheel timer, ChannelGateway gateway, ExecutorService executor) {
+        this.settings = settings;
+        this.db = db;
+        this.timer = timer;
+        this.gateway = gateway;
+
+        if (executor != null) {
+            // Mailboxes keep the tasks of a template in order on any executor, so they can share the virtual threads
+            this.executor = executor;
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "ChannelCloner-Scaling-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        actions = new ChannelActionQueue(settings.getRestMaxInFlight(), settings.getGuildMaxInFlight(), settings::getGuildWeight);
+    }
+
+    public void submit(long template, Runnable task) {
+        mailboxes.computeIfAbsent(template, id -> new Mailbox(id, executor)).submit(task);
+    }
+
+    TemplateState getState(long template) {
+        return states.computeIfAbsent(template, TemplateState::new);
+    }
+
+    public void join(long guild, long channel, long member) {
+        Template template = db.resolveTemplate(channel, guild);
+        if (template == null) return;
+
+        long received = System.nanoTime();
+        submit(template.getId(), () -> {
+            TemplateState state = getState(template.getId());
+            state.getOccupancy().join(channel, member);
+            markDirty(template, state, received);
+        });
+    }
+
+    public void leave(long guild, long channel, long member) {
+        Template template = db.resolveTemplate(channel, guild);
+        if (template == null) return;
+
+        submit(template.getId(), () -> {
+            TemplateState state = getState(template.getId());
+            state.getOccupancy().leave(channel, member);
+            markDirty(template, state, 0);
+        });
+    }
+
+    // Voice events only update the occupancy, the template is rebalanced once per burst after the coalescing window.
+    // With no window the rebalance still runs once for every event already waiting in the mailbox.
+    private void markDirty(Template template, TemplateState state, long requested) {
+        if (requested != 0 && state.getRequested() == 0) state.setRequested(requested);
+        if (state.isDirty()) return;
+        state.setDirty(true);
+
+        Runnable reconcile = () -> submit(template.getId(), () -> {
+            long oldest = state.getRequested();
+            state.setDirty(false);
+            state.setRequested(0);
+
+            rebalance(template.getId(), template.getGuild(), oldest);
+        });
+
+        int window = settings.getBurstWindow();
+        if (window > 0) timer.schedule(reconcile, window, TimeUnit.MILLISECONDS);
+        else reconcile.run();
+    }
+
+    public void warmUp() {
+        warm = true;
+        db.getTemplates().forEach(template -> submit(template.getId(), () -> rebalance(template.getId(), template.getGuild(), 0)));
+    }
+
+    // A shard that got a new session may have missed voice events while it was away. The occupancy of the templates in
+    // its guilds is read again from the rebuilt cache on their next rebalance. Shards that become ready during startup
+    // are left to the warm up.
+    public void reseed(Set<Long> guilds) {
+        if (!warm) return;
+
+        db.getTemplates().stream().filter(template -> guilds.contains(template.getGuild())).forEach(template -> submit(template.getId(), () -> {
+            TemplateState state = getState(template.getId());
+            state.getOccupancy().clear();
+            state.setSeeded(false);
+            rebalance(template.getId(), template.getGuild(), 0);
+        }));
+    }
+
+    // Keeps the number of empty channels of a template equal to its warm pool size.
+    // Missing channels are created all at once, extra channels are scheduled for deletion.
+    // "requested" is when the oldest voice join asking for the channels was received, 0 when no one is waiting for them.
+    void rebalance(long id, long guildId, long requested) {
+        Template template = db.getTemplate(id, guildId);
+        if (template == null) return;
+
+        if (gateway.getMembers(template.getGuild(), template.getId()) == null) return;
+
+        TemplateState state = getState(template.getId());
+        if (!state.isSeeded()) seed(template, state);
+
+        long emptyChannels = getEmptyChannels(template, state);
+        int warmPool = getWarmPool(template, state);
+
+        if (emptyChannels < warmPool && db.isEnabled(template.getGuild())) {
+            int missing = 0;
+            for (long i = emptyChannels; i < warmPool; i++) {
+                // A clone still waiting to be deleted covers the demand without any REST call
+                long kept = actions.keepQueuedDeletion(template.getGuild(), template.getId());
+                if (kept != 0) state.getQueuedDeletions().remove(kept);
+                else missing++;
+            }
+
+            if (missing > 0) createClones(template, state, missing, requested);
+        }
+
+        updateDeletions(template, state, emptyChannels - warmPool);
+    }
+
+    // A stored clone is counted twice between its indexing and the end of its creation in the mailbox,
+    // so this can briefly be one too high for every clone of a burst that was just stored.
+    private long getEmptyChannels(Template template, TemplateState state) {
+        long totalChannels = db.getCloneCount(template.getId()) + 1 + state.getPendingCreations() - state.getQueuedDeletions().size();
+        return totalChannels - state.getOccupancy().getOccupied();
+    }
+
+    private int getWarmPool(Template template, TemplateState state) {
+        int warmPool = settings.getWarmPool(template.getId());
+        // Channels for a predicted peak are added on top, the warm pool still covers what the prediction missed
+        if (settings.isPredictionEnabled() && !settings.isPredictionDryRun()) {
+            warmPool += Math.max(0, state.getPredictedPeak() - state.getOccupancy().getOccupied());
+        }
+
+        return warmPool;
+    }
+
+    // Occupancy is kept up to date from voice events, the JDA cache is only read the first time a template is used.
+    private void seed(Template template, TemplateState state) {
+        seed(state, template.getGuild(), template.getId());
+        db.getClones(template).forEach(clone -> seed(state, clone.getGuild(), clone.getId()));
+
+        state.setSeeded(true);
+    }
+
+    private void seed(TemplateState state, long guild, long channel) {
+        long[] connected = gateway.getMembers(guild, channel);
+        if (connected != null) state.getOccupancy().seed(channel, connected);
+    }
+
+    // Empty clones above the warm pool are only deleted after the grace period, and only once the
+    // excess goes past the template's hysteresis. Pending deletions are dropped as soon as they are no longer needed.
+    private void updateDeletions(Template template, TemplateState state, long excess) {
+        Occupancy occupancy = state.getOccupancy();
+
+        // Someone joined a clone whose deletion was not sent yet
+        for (long id : state.getQueuedDeletions().keys()) {
+            if (occupancy.isOccupied(id) && actions.cancelDeletion(template.getGuild(), template.getId(), id)) {
+                state.getQueuedDeletions().remove(id);
+            }
+        }
+
+        state.getPendingDeletions().removeIf((id, timeout) -> {
+            Clone clone = db.getClone(id, template.getGuild());
+            if (clone != null && !occupancy.isOccupied(id)) return false;
+
+            timeout.cancel();
+            return true;
+        });
+
+        long[] pending = state.getPendingDeletions().keys();
+        for (int i = 0; i < pending.length - Math.max(0, excess); i++) state.cancelDeletion(pending[i]);
+
+        if (excess <= settings.getScaleDownHysteresis(template.getId())) return;
+
+        List<Clone> clones = db.getClones(template);
+        clones.sort(Collections.reverseOrder());
+        for (Clone clone : clones) {
+            if (state.getPendingDeletions().size() >= excess) break;
+            if (clone.getNumber() == 1 || state.isPendingDeletion(clone.getId()) || occupancy.isOccupied(clone.getId())) continue;
+
+            long id = clone.getId();
+            TimerWheel.Timeout timeout = timer.schedule(
+                    () -> submit(template.getId(), () -> expireDeletion(template.getId(), template.getGuild(), id)),
+                    settings.getDeletionGracePeriod(),
+                    TimeUnit.SECONDS
+            );
+            state.getPendingDeletions().put(id, timeout);
+        }
+    }
+
+    private void expireDeletion(long templateId, long guildId, long id) {
+        TemplateState state = getState(templateId);
+        TimerWheel.Timeout timeout = state.getPendingDeletions().get(id);
+        if (timeout == null || !timeout.isExpired()) return;
+        state.getPendingDeletions().remove(id);
+
+        Clone clone = db.getClone(id, guildId);
+        if (clone == null || state.getOccupancy().isOccupied(id)) return;
+
+        // The excess is checked again, it may have been counted while a new clone was counted twice
+        Template template = db.getTemplate(templateId, guildId);
+        if (template == null || getEmptyChannels(template, state) <= getWarmPool(template, state)) return;
+
+        // A creation of the same template that was not sent yet would only replace this clone, both are dropped
+        if (actions.cancelCreation(guildId, templateId)) return;
+
+        state.getQueuedDeletions().put(id, 1);
+        long start = System.nanoTime();
+
+        actions.delete(guildId, templateId, id, () -> deleteClone(clone)).whenComplete((ignored, error) -> submit(templateId, () -> {
+            state.getQueuedDeletions().remove(id);
+            if (error instanceof CancellationException) return;
+
+            if (unwrap(error) instanceof InsufficientPermissionException) {
+                gateway.notifyInsufficientPermissions(guildId);
+                return;
+            }
+
+            // The channel may still exist after any other failure, the record is kept so the clone is not orphaned.
+            // Rebalancing puts it back in the excess, so the deletion is retried after another grace period.
+            if (error != null) {
+                LOGGER.warn("Cannot delete clone " + id + " in guild " + guildId + ": " + unwrap(error).getMessage());
+                rebalance(templateId, guildId, 0);
+                return;
+            }
+
+            Metrics.CLONE_DELETE.observeSince(start);
+            state.getOccupancy().remove(id);
+            db.removeClone(clone);
+        }));
+    }
+
+    // Every copy of a burst is queued at once, and the clones that went through are stored together in one transaction
+    private void createClones(Template template, TemplateState state, int count, long requested) {
+        long guild = template.getGuild();
+        long start = System.nanoTime();
+        List<CompletableFuture<Clone>> copies = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            int number = db.allocateCloneNumber(template.getId());
+            state.beginCreation();
+
+            CompletableFuture<Clone> copy = actions.create(guild, template.getId(), () -> copyClone(template, number));
+            copy.whenComplete((clone, error) -> {
+                if (error == null) {
+                    if (requested != 0) Metrics.JOIN_TO_CLONE.observeSince(requested);
+                    return;
+                }
+
+                submit(template.getId(), state::endCreation);
+                db.releaseCloneNumber(template.getId(), number);
+                if (error instanceof CancellationException) return;
+
+                Metrics.CLONE_FAILURES.inc();
+                handleFailure(guild, error);
+            });
+            copies.add(copy);
+        }
+
+        CompletableFuture.allOf(copies.toArray(new CompletableFuture[0])).whenComplete((ignored, error) -> {
+            List<Clone> created = new ArrayList<>();
+            for (CompletableFuture<Clone> copy : copies) {
+                if (!copy.isCompletedExceptionally()) created.add(copy.join());
+            }
+            if (created.isEmpty()) return;
+
+            db.addClones(created).thenAccept(result -> {
+                // Someone may have joined before the clones were indexed, their event was dropped.
+                // The creations are ended before anything else so a failure below cannot leave them pending.
+                submit(template.getId(), () -> created.forEach(clone -> {
+                    state.endCreation();
+
+                    if (result.isSuccess()) {
+                        Metrics.CLONE_CREATE.observeSince(start);
+                        seed(state, clone.getGuild(), clone.getId());
+                    } else {
+                        Metrics.CLONE_FAILURES.inc();
+                        db.releaseCloneNumber(template.getId(), clone.getNumber());
+                    }
+                }));
+
+                if (!result.isSuccess()) {
+                    LOGGER.warn("Cannot store " + created.size() + " clones of template " + template.getId() + ": " + result.getError());
+                    created.forEach(this::deleteClone);
+                }
+            });
+        });
+    }
+
+    // Copies the template channels, nothing is left behind if only one of the pair went through
+    private CompletableFuture<Clone> copyClone(Template template, int number) {
+        long guild = template.getGuild();
+        CompletableFuture<Long> primary = gateway.copyChannel(guild, template.getId(), template.getName().replace("%d", String.valueOf(number)));
+        CompletableFuture<Long> secondary = CompletableFuture.completedFuture(0L);
+
+        if (template.hasSecondary()) {
+            SecondaryTemplate secondaryTemplate = db.getSecondaryTemplate(guild, template.getSecondary());
+
+            if (secondaryTemplate != null && gateway.getMembers(guild, template.getSecondary()) != null) {
+                secondary = gateway.copyChannel(guild, template.getSecondary(), secondaryTemplate.getName().replace("%d", String.valueOf(number)));
+            }
+        }
+
+        CompletableFuture<Long> secondaryCopy = secondary;
+        return primary.thenCombine(secondaryCopy, (clone, secondaryClone) -> new Clone(clone, guild, template.getId(), number, secondaryClone))
+                .whenComplete((clone, error) -> {
+                    if (error == null) return;
+
+                    primary.thenAccept(id -> gateway.deleteChannel(guild, id));
+                    secondaryCopy.thenAccept(id -> {
+                        if (id != 0) gateway.deleteChannel(guild, id);
+                    });
+                });
+    }
+
+    // Clones found by the reconciliation are deleted through the queue like any other, and their record is only removed
+    // once the channel is gone. Completes with false if the channel may still exist.
+    CompletableFuture<Boolean> deleteOrphan(Clone clone) {
+        long guild = clone.getGuild();
+        long template = clone.getTemplate();
+        CompletableFuture<Boolean> deleted = new CompletableFuture<>();
+
+        actions.delete(guild, template, clone.getId(), () -> deleteClone(clone)).whenComplete((ignored, error) -> submit(template, () -> {
+            if (error == null) {
+                getState(template).getOccupancy().remove(clone.getId());
+                db.removeClone(clone);
+            } else if (unwrap(error) instanceof InsufficientPermissionException) {
+                gateway.notifyInsufficientPermissions(guild);
+            } else if (!(error instanceof CancellationException)) {
+                LOGGER.warn("Cannot delete clone " + clone.getId() + " in guild " + guild + ": " + unwrap(error).getMessage());
+            }
+
+            deleted.complete(error == null);
+        }));
+
+        return deleted;
+    }
+
+    private CompletableFuture<Void> deleteClone(Clone clone) {
+        CompletableFuture<Void> primary = gateway.deleteChannel(clone.getGuild(), clone.getId());
+        if (clone.hasSecondary()) gateway.deleteChannel(clone.getGuild(), clone.getSecondary());
+
+        return primary;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private void handleFailure(long guild, Throwable error) {
+        Throwable cause = unwrap(error);
+
+        if (cause instanceof InsufficientPermissionException) gateway.notifyInsufficientPermissions(guild);
+        else LOGGER.warn("Cannot create clone in guild " + guild + ": " + cause.getMessage());
+    }
+}
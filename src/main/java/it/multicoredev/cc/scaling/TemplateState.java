@@ -0,0 +1,114 @@
+package it.multicoredev.cc.scaling;
+
+import it.multicoredev.cc.utils.LongLongMap;
+import it.multicoredev.cc.utils.LongObjectMap;
+import it.multicoredev.cc.utils.TimerWheel;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class TemplateState {
+    private final long template;
+    private final LongObjectMap<TimerWheel.Timeout> pendingDeletions = new LongObjectMap<>();
+    // Clones whose grace period expired and whose deletion is waiting in the guild's action queue, used as a set
+    private final LongLongMap queuedDeletions = new LongLongMap();
+    private final Occupancy occupancy = new Occupancy();
+    private boolean seeded;
+    private int pendingCreations;
+    // Set while a rebalance is scheduled, together with when the oldest join waiting for it was received
+    private boolean dirty;
+    private long requested;
+    // Occupied channels expected within the prediction lead, 0 when nothing was learned
+    private int predictedPeak;
+
+    // Only ever touched from the template's mailbox, so no synchronization is needed.
+    public TemplateState(long template) {
+        this.template = template;
+    }
+
+    public long getTemplate() {
+        return template;
+    }
+
+    public Occupancy getOccupancy() {
+        return occupancy;
+    }
+
+    public boolean isSeeded() {
+        return seeded;
+    }
+
+    public void setSeeded(boolean seeded) {
+        this.seeded = seeded;
+    }
+
+    public int getPendingCreations() {
+        return pendingCreations;
+    }
+
+    public void beginCreation() {
+        pendingCreations++;
+    }
+
+    public void endCreation() {
+        if (pendingCreations > 0) pendingCreations--;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    public long getRequested() {
+        return requested;
+    }
+
+    public void setRequested(long requested) {
+        this.requested = requested;
+    }
+
+    public int getPredictedPeak() {
+        return predictedPeak;
+    }
+
+    public void setPredictedPeak(int predictedPeak) {
+        this.predictedPeak = predictedPeak;
+    }
+
+    public LongObjectMap<TimerWheel.Timeout> getPendingDeletions() {
+        return pendingDeletions;
+    }
+
+    public boolean isPendingDeletion(long clone) {
+        return pendingDeletions.containsKey(clone) || queuedDeletions.containsKey(clone);
+    }
+
+    public LongLongMap getQueuedDeletions() {
+        return queuedDeletions;
+    }
+
+    public void cancelDeletion(long clone) {
+        TimerWheel.Timeout timeout = pendingDeletions.remove(clone);
+        if (timeout != null) timeout.cancel();
+    }
+}
@@ -0,0 +1,332 @@
+package it.multicoredev.cc.storage;
+
+import it.multicoredev.cc.storage.models.Clone;
+import it.multicoredev.cc.utils.LongObjectMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static it.multicoredev.cc.ChannelCloner.LOGGER;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class CloneJournal {
+    private static final int MAGIC = 0x43434a4e;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    // type, number, id, guild, template, secondary, crc and padding
+    private static final int ENTRY = 48;
+    private static final int CHECKED = 40;
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+    private static final int CHUNK = 1 << 20;
+    // The journal is compacted once it holds this many more entries than there are live clones
+    private static final int COMPACT_SLACK = 4096;
+
+    private final File file;
+    private final File snapshot;
+    private final LongObjectMap<Clone> live = new LongObjectMap<>();
+    private final ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+    private final CRC32 crc = new CRC32();
+    // Compactions run one at a time, away from the threads adding and removing clones
+    private final Object compaction = new Object();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ChannelCloner-Journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+    private int entries;
+    private boolean compacting;
+
+    // Clone state as a snapshot of the live clones plus a journal of the adds and removes since then. Entries have a
+    // fixed size and a checksum, replay stops at the first empty or torn one. Writes only copy an entry into the mapping,
+    // the OS flushes it, and the mapping is forced to disk on compaction and on close.
+    // The journal grows by 1 MiB chunks and compaction starts it over at one chunk. Mappings replaced by a growth or
+    // a compaction are released when they are garbage collected.
+    public CloneJournal(File file) throws IOException {
+        this.file = file;
+        this.snapshot = new File(file.getPath() + ".snapshot");
+
+        readSnapshot();
+        openJournal();
+    }
+
+    public static boolean exists(File file) {
+        return file.exists() || new File(file.getPath() + ".snapshot").exists();
+    }
+
+    public synchronized List<Clone> getClones() {
+        return live.values();
+    }
+
+    public synchronized void add(Collection<Clone> clones) throws IOException {
+        for (Clone clone : clones) {
+            append(ADD, clone);
+            live.put(clone.getId(), clone);
+        }
+
+        compactIfNeeded();
+    }
+
+    public synchronized void remove(Collection<Clone> clones) throws IOException {
+        for (Clone clone : clones) {
+            if (live.remove(clone.getId()) == null) continue;
+            append(REMOVE, clone);
+        }
+
+        compactIfNeeded();
+    }
+
+    // The snapshot is replaced atomically before the journal is. Crashing in between replays adds and removes that are
+    // already in the snapshot, which leads to the same state. Only replacing the journal holds the lock: the entries
+    // appended while the snapshot was written are copied to a new journal file, renamed over the old one.
+    public void compact() throws IOException {
+        synchronized (compaction) {
+            List<Clone> clones;
+            int compacted;
+            synchronized (this) {
+                clones = live.values();
+                compacted = entries;
+            }
+
+            // Appends keep using the shared entry buffer meanwhile
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER + clones.size() * ENTRY);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(ENTRY).putInt(clones.size());
+            for (Clone clone : clones) buffer.put(encode(entry, crc, ADD, clone));
+            buffer.flip();
+
+            File temp = new File(snapshot.getPath() + ".tmp");
+            try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+                out.setLength(0);
+                FileChannel channel = out.getChannel();
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(true);
+            }
+            Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // The old journal stays whole until the rename, so a crash at any point replays a complete journal
+            MappedByteBuffer current;
+            synchronized (this) {
+                int kept = entries - compacted;
+                ByteBuffer tail = map.duplicate();
+                tail.position(HEADER + compacted * ENTRY).limit(HEADER + entries * ENTRY);
+
+                ByteBuffer journal = ByteBuffer.allocate(HEADER + kept * ENTRY);
+                journal.putInt(MAGIC).putInt(VERSION).putInt(ENTRY).putInt(0).put(tail);
+                journal.flip();
+
+                File next = new File(file.getPath() + ".tmp");
+                try (RandomAccessFile out = new RandomAccessFile(next, "rw")) {
+                    out.setLength(0);
+                    FileChannel channel = out.getChannel();
+                    while (journal.hasRemaining()) channel.write(journal);
+                }
+                Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                raf.close();
+                raf = new RandomAccessFile(file, "rw");
+                map(Math.max(raf.length(), CHUNK));
+                entries = kept;
+                current = map;
+            }
+            current.force();
+        }
+    }
+
+    public void close() {
+        stopCompactor();
+
+        try {
+            compact();
+            synchronized (this) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close clone journal: " + e.getMessage());
+        }
+    }
+
+    // Once its clones were moved elsewhere
+    public void delete() throws IOException {
+        stopCompactor();
+
+        synchronized (this) {
+            raf.close();
+        }
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(snapshot.toPath());
+    }
+
+    private void readSnapshot() throws IOException {
+        if (!snapshot.exists()) return;
+
+        byte[] data = Files.readAllBytes(snapshot.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != ENTRY) {
+            throw new IOException("Invalid clone snapshot " + snapshot.getName());
+        }
+
+        int count = buffer.getInt(12);
+        for (int i = 0; i < count; i++) {
+            Clone clone = decode(buffer, HEADER + i * ENTRY);
+            if (clone == null) throw new IOException("Corrupted clone snapshot " + snapshot.getName() + " at entry " + i);
+
+            live.put(clone.getId(), clone);
+        }
+    }
+
+    private void openJournal() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        boolean empty = raf.length() < HEADER;
+        map(Math.max(raf.length(), CHUNK));
+
+        if (empty || map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != ENTRY) {
+            if (!empty) throw new IOException("Invalid clone journal " + file.getName());
+
+            map.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, ENTRY).putInt(12, 0);
+            return;
+        }
+
+        while (HEADER + (entries + 1) * ENTRY <= map.capacity()) {
+            int position = HEADER + entries * ENTRY;
+            int type = map.getInt(position);
+            Clone clone = decode(map, position);
+            if (clone == null) break;
+
+            if (type == ADD) live.put(clone.getId(), clone);
+            else live.remove(clone.getId());
+            entries++;
+        }
+
+        // Anything after a torn entry was never acknowledged, it is overwritten by the next appends
+        for (int position = HEADER + entries * ENTRY; position + ENTRY <= map.capacity() && !isEmpty(position); position += ENTRY) {
+            for (int i = 0; i < ENTRY; i++) map.put(position + i, (byte) 0);
+        }
+    }
+
+    private boolean isEmpty(int position) {
+        for (int i = 0; i < ENTRY; i++) {
+            if (map.get(position + i) != 0) return false;
+        }
+
+        return true;
+    }
+
+    private void map(long size) throws IOException {
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void append(int type, Clone clone) throws IOException {
+        int position = HEADER + entries * ENTRY;
+        if (position + ENTRY > map.capacity()) map((long) map.capacity() + CHUNK);
+
+        ByteBuffer target = map.duplicate();
+        target.position(position);
+        target.put(encode(entry, crc, type, clone));
+        entries++;
+    }
+
+    private void compactIfNeeded() {
+        if (compacting || entries <= live.size() + COMPACT_SLACK) return;
+        compacting = true;
+
+        try {
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot compact clone journal: " + e.getMessage());
+                } finally {
+                    synchronized (this) {
+                        compacting = false;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compacting = false;
+        }
+    }
+
+    // Waits for a compaction already scheduled, the journal keeps working afterwards
+    void awaitCompaction() {
+        try {
+            compactor.submit(() -> {
+            }).get();
+        } catch (RejectedExecutionException | ExecutionException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits for a compaction already running, the caller compacts or deletes the journal itself afterwards
+    private void stopCompactor() {
+        compactor.shutdown();
+
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static ByteBuffer encode(ByteBuffer entry, CRC32 crc, int type, Clone clone) {
+        entry.clear();
+        entry.putInt(type).putInt(clone.getNumber())
+                .putLong(clone.getId()).putLong(clone.getGuild()).putLong(clone.getTemplate()).putLong(clone.getSecondary());
+
+        crc.reset();
+        crc.update(entry.array(), 0, CHECKED);
+        entry.putInt((int) crc.getValue()).putInt(0);
+        entry.flip();
+        return entry;
+    }
+
+    private Clone decode(ByteBuffer buffer, int position) {
+        int type = buffer.getInt(position);
+        if (type != ADD && type != REMOVE) return null;
+
+        byte[] checked = new byte[CHECKED];
+        for (int i = 0; i < CHECKED; i++) checked[i] = buffer.get(position + i);
+        crc.reset();
+        crc.update(checked, 0, CHECKED);
+        if ((int) crc.getValue() != buffer.getInt(position + CHECKED)) return null;
+
+        return new Clone(buffer.getLong(position + 8), buffer.getLong(position + 16), buffer.getLong(position + 24),
+                buffer.getInt(position + 4), buffer.getLong(position + 32));
+    }
+}
@@ -0,0 +1,58 @@
+package it.multicoredev.cc.storage;
+
+import java.util.BitSet;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class CloneNumberAllocator {
+    // Number 1 is the template itself
+    private static final int FIRST_NUMBER = 2;
+
+    private final BitSet used = new BitSet();
+    private int lowestFree = FIRST_NUMBER;
+
+    // Every number between FIRST_NUMBER and lowestFree is in use, so searches never rescan the dense prefix.
+    public synchronized int allocate() {
+        int number = used.nextClearBit(lowestFree);
+        used.set(number);
+        lowestFree = number + 1;
+
+        return number;
+    }
+
+    public synchronized boolean reserve(int number) {
+        if (number < FIRST_NUMBER || used.get(number)) return false;
+
+        used.set(number);
+        return true;
+    }
+
+    public synchronized void release(int number) {
+        if (number < FIRST_NUMBER) return;
+
+        used.clear(number);
+        if (number < lowestFree) lowestFree = number;
+    }
+
+    public synchronized int size() {
+        return used.cardinality();
+    }
+}
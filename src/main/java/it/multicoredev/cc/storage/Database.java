@@ -1,17 +1,34 @@
 package it.multicoredev.cc.storage;
 
+import it.multicoredev.cc.metrics.Metrics;
 import it.multicoredev.cc.storage.models.Clone;
+import it.multicoredev.cc.storage.models.GuildSettings;
 import it.multicoredev.cc.storage.models.SecondaryTemplate;
 import it.multicoredev.cc.storage.models.Template;
-import it.multicoredev.mclib.db.SQLite;
+import it.multicoredev.cc.utils.LongLongMap;
+import it.multicoredev.cc.utils.LongObjectMap;
 import net.dv8tion.jda.api.entities.AudioChannel;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.TextChannel;
 
 import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 import static it.multicoredev.cc.ChannelCloner.LOGGER;
 
@@ -41,269 +58,720 @@ public class Database {
     private static final String SECONDARY_TEMPLATES = "secondary_templates";
     private static final String CLONES = "clones";
     private static final String SECONDARY_CLONES = "secondary_clones";
+    private static final String META = "meta";
+
+    private final Connection connection;
+    private final PersistenceWriter writer;
+    // Null when the clones are stored in SQLite
+    private final CloneJournal journal;
+
+    // In-memory index of the tables, keyed by snowflake. Reads are served from here, writes go through to SQLite.
+    // Reads are lock free most of the time: they run optimistically and are only retried under the lock if a write overlapped.
+    private final StampedLock lock = new StampedLock();
+    private final LongObjectMap<GuildSettings> guilds = new LongObjectMap<>();
+    private final LongObjectMap<Template> templates = new LongObjectMap<>();
+    private final LongObjectMap<SecondaryTemplate> secondaryTemplates = new LongObjectMap<>();
+    private final LongObjectMap<Clone> clones = new LongObjectMap<>();
+    private final LongObjectMap<LongObjectMap<Clone>> templateClones = new LongObjectMap<>();
+    // Template of every template and clone channel, a voice event finds its template with a single lookup
+    private final LongLongMap channelTemplates = new LongLongMap();
+    private final LongObjectMap<CloneNumberAllocator> allocators = new LongObjectMap<>();
+    // Small key-value state of the bot itself, not tied to a guild
+    private final Map<String, String> meta = new ConcurrentHashMap<>();
+
+    public Database(File file, int batchSize, long batchDelay) throws SQLException {
+        this(file, batchSize, batchDelay, false);
+    }
+
+    // With cloneJournal the clones are kept in a memory mapped journal next to the database instead of the clones tables.
+    // Switching between the two moves the clones over on startup.
+    public Database(File file, int batchSize, long batchDelay, boolean cloneJournal) throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA cache_size = -8192");
+            statement.execute("PRAGMA temp_store = MEMORY");
+            statement.execute("PRAGMA busy_timeout = 5000");
+        }
 
-    private SQLite db;
-
-    public Database(File file) throws SQLException {
-        db = new SQLite(file);
-
-        db.createTable(new String[]{
-                "`guild` VARCHAR(20) PRIMARY KEY",
-                "`enabled` TINYINT DEFAULT 1",
-                "`channel` VARCHAR(20)",
-        }, GUILDS);
-
-        db.createTable(new String[]{
-                "`id` VARCHAR(20) PRIMARY KEY",
-                "`guild` VARCHAR(20) NOT NULL",
-                "`name` VARCHAR(100) NOT NULL",
-                "`secondary` VARCHAR(20)"
-        }, TEMPLATES);
-
-        db.createTable(new String[]{
-                "`id` VARCHAR(20) PRIMARY KEY",
-                "`guild` VARCHAR(20) NOT NULL",
-                "`name` VARCHAR(100) NOT NULL",
-                "`primary` VARCHAR(20)"
-        }, SECONDARY_TEMPLATES);
-
-        db.createTable(new String[]{
-                "`id` VARCHAR(20) PRIMARY KEY",
-                "`guild` VARCHAR(20) NOT NULL",
-                "`template` VARCHAR(20) NOT NULL",
-                "`number` INTEGER NOT NULL",
-                "`secondary` VARCHAR(20)"
-        }, CLONES);
-
-        db.createTable(new String[]{
-                "`id` VARCHAR(20) PRIMARY KEY",
-                "`guild` VARCHAR(20) NOT NULL",
-                "`number` INTEGER NOT NULL"
-        }, SECONDARY_CLONES);
-    }
-
-    public Result enableBot(Guild guild, TextChannel channel) {
-        if (guild == null) return new Result(false, "Guild is null");
+        int version = new SchemaMigrator(connection)
+                .register(1, "Initial schema", Database::createInitialSchema)
+                .register(2, "Integer snowflakes and lookup indexes", Database::migrateIntegerSnowflakes)
+                .register(3, "Metadata table", Database::createMetaTable)
+                .migrate(file);
+        LOGGER.info("Database schema is at version " + version);
 
+        File journalFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".clones");
         try {
-            if (db.rowExists("guild", guild.getId(), GUILDS)) db.set(new String[]{"enabled", "channel"}, new Object[]{true, channel.getId()}, "guild", guild.getId(), GUILDS);
-            else db.addRow(new String[]{"guild", "enabled", "channel"}, new Object[]{guild.getId(), true, channel.getId()}, GUILDS);
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-            return new Result(false, e.getMessage());
+            if (cloneJournal) {
+                boolean created = !CloneJournal.exists(journalFile);
+                journal = new CloneJournal(journalFile);
+                if (created) moveClonesToJournal();
+            } else {
+                journal = null;
+                if (CloneJournal.exists(journalFile)) moveClonesFromJournal(journalFile);
+            }
+        } catch (IOException e) {
+            throw new SQLException("Cannot open clone journal: " + e.getMessage(), e);
         }
 
-        return new Result(true, null);
+        loadIndex();
+
+        writer = new PersistenceWriter(connection, batchSize, batchDelay, TimeUnit.MILLISECONDS);
     }
 
-    public Result disableBot(Guild guild) {
-        if (guild == null) return new Result(false, "Guild is null");
+    private static void createInitialSchema(Statement statement) throws SQLException {
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + GUILDS + "` (" +
+                "`guild` VARCHAR(20) PRIMARY KEY, " +
+                "`enabled` TINYINT DEFAULT 1, " +
+                "`channel` VARCHAR(20))");
+
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + TEMPLATES + "` (" +
+                "`id` VARCHAR(20) PRIMARY KEY, " +
+                "`guild` VARCHAR(20) NOT NULL, " +
+                "`name` VARCHAR(100) NOT NULL, " +
+                "`secondary` VARCHAR(20))");
+
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + SECONDARY_TEMPLATES + "` (" +
+                "`id` VARCHAR(20) PRIMARY KEY, " +
+                "`guild` VARCHAR(20) NOT NULL, " +
+                "`name` VARCHAR(100) NOT NULL, " +
+                "`primary` VARCHAR(20))");
+
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + CLONES + "` (" +
+                "`id` VARCHAR(20) PRIMARY KEY, " +
+                "`guild` VARCHAR(20) NOT NULL, " +
+                "`template` VARCHAR(20) NOT NULL, " +
+                "`number` INTEGER NOT NULL, " +
+                "`secondary` VARCHAR(20))");
+
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + SECONDARY_CLONES + "` (" +
+                "`id` VARCHAR(20) PRIMARY KEY, " +
+                "`guild` VARCHAR(20) NOT NULL, " +
+                "`number` INTEGER NOT NULL)");
+    }
 
-        try {
-            if (db.rowExists("guild", guild.getId(), GUILDS)) db.set("enabled", false, "guild", guild.getId(), GUILDS);
-            else db.addRow(new String[]{"guild", "enabled"}, new Object[]{guild.getId(), false}, GUILDS);
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-            return new Result(false, e.getMessage());
+    // Version 1 stored snowflakes as text, and the library used to write missing values as the string "null".
+    // Tables are rebuilt with INTEGER snowflakes (the id becomes the rowid) and the indexes used by the lookups.
+    private static void migrateIntegerSnowflakes(Statement statement) throws SQLException {
+        statement.executeUpdate("CREATE TABLE `" + GUILDS + "_v2` (" +
+                "`guild` INTEGER PRIMARY KEY, " +
+                "`enabled` INTEGER NOT NULL DEFAULT 1, " +
+                "`channel` INTEGER)");
+        statement.executeUpdate("INSERT INTO `" + GUILDS + "_v2` (`guild`, `enabled`, `channel`) " +
+                "SELECT CAST(`guild` AS INTEGER), " +
+                "CASE WHEN `enabled` IN (1, '1', 'true') THEN 1 ELSE 0 END, " +
+                "CAST(NULLIF(`channel`, 'null') AS INTEGER) " +
+                "FROM `" + GUILDS + "` WHERE `guild` IS NOT NULL AND `guild` != 'null'");
+
+        statement.executeUpdate("CREATE TABLE `" + TEMPLATES + "_v2` (" +
+                "`id` INTEGER PRIMARY KEY, " +
+                "`guild` INTEGER NOT NULL, " +
+                "`name` VARCHAR(100) NOT NULL, " +
+                "`secondary` INTEGER)");
+        statement.executeUpdate("INSERT INTO `" + TEMPLATES + "_v2` (`id`, `guild`, `name`, `secondary`) " +
+                "SELECT CAST(`id` AS INTEGER), CAST(`guild` AS INTEGER), `name`, CAST(NULLIF(`secondary`, 'null') AS INTEGER) " +
+                "FROM `" + TEMPLATES + "` WHERE `id` IS NOT NULL AND `id` != 'null'");
+
+        statement.executeUpdate("CREATE TABLE `" + SECONDARY_TEMPLATES + "_v2` (" +
+                "`id` INTEGER PRIMARY KEY, " +
+                "`guild` INTEGER NOT NULL, " +
+                "`name` VARCHAR(100) NOT NULL, " +
+                "`primary` INTEGER)");
+        statement.executeUpdate("INSERT INTO `" + SECONDARY_TEMPLATES + "_v2` (`id`, `guild`, `name`, `primary`) " +
+                "SELECT CAST(`id` AS INTEGER), CAST(`guild` AS INTEGER), `name`, CAST(NULLIF(`primary`, 'null') AS INTEGER) " +
+                "FROM `" + SECONDARY_TEMPLATES + "` WHERE `id` IS NOT NULL AND `id` != 'null'");
+
+        statement.executeUpdate("CREATE TABLE `" + CLONES + "_v2` (" +
+                "`id` INTEGER PRIMARY KEY, " +
+                "`guild` INTEGER NOT NULL, " +
+                "`template` INTEGER NOT NULL, " +
+                "`number` INTEGER NOT NULL, " +
+                "`secondary` INTEGER)");
+        statement.executeUpdate("INSERT INTO `" + CLONES + "_v2` (`id`, `guild`, `template`, `number`, `secondary`) " +
+                "SELECT CAST(`id` AS INTEGER), CAST(`guild` AS INTEGER), CAST(`template` AS INTEGER), `number`, CAST(NULLIF(`secondary`, 'null') AS INTEGER) " +
+                "FROM `" + CLONES + "` WHERE `id` IS NOT NULL AND `id` != 'null'");
+
+        statement.executeUpdate("CREATE TABLE `" + SECONDARY_CLONES + "_v2` (" +
+                "`id` INTEGER PRIMARY KEY, " +
+                "`guild` INTEGER NOT NULL, " +
+                "`number` INTEGER NOT NULL)");
+        statement.executeUpdate("INSERT INTO `" + SECONDARY_CLONES + "_v2` (`id`, `guild`, `number`) " +
+                "SELECT CAST(`id` AS INTEGER), CAST(`guild` AS INTEGER), `number` " +
+                "FROM `" + SECONDARY_CLONES + "` WHERE `id` IS NOT NULL AND `id` != 'null'");
+
+        for (String table : new String[]{GUILDS, TEMPLATES, SECONDARY_TEMPLATES, CLONES, SECONDARY_CLONES}) {
+            statement.executeUpdate("DROP TABLE `" + table + "`");
+            statement.executeUpdate("ALTER TABLE `" + table + "_v2` RENAME TO `" + table + "`");
+        }
+
+        statement.executeUpdate("CREATE INDEX `idx_templates_guild` ON `" + TEMPLATES + "` (`guild`)");
+        statement.executeUpdate("CREATE INDEX `idx_secondary_templates_guild` ON `" + SECONDARY_TEMPLATES + "` (`guild`)");
+        statement.executeUpdate("CREATE INDEX `idx_clones_guild_template` ON `" + CLONES + "` (`guild`, `template`)");
+        statement.executeUpdate("CREATE INDEX `idx_clones_template_number` ON `" + CLONES + "` (`template`, `number`)");
+        statement.executeUpdate("CREATE INDEX `idx_secondary_clones_guild` ON `" + SECONDARY_CLONES + "` (`guild`)");
+    }
+
+    private static void createMetaTable(Statement statement) throws SQLException {
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + META + "` (" +
+                "`key` VARCHAR(100) PRIMARY KEY, " +
+                "`value` TEXT NOT NULL)");
+    }
+
+    private void loadIndex() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet rs = statement.executeQuery("SELECT `guild`, `enabled`, `channel` FROM `" + GUILDS + "`")) {
+                while (rs.next()) {
+                    GuildSettings settings = new GuildSettings(rs.getLong("guild"), rs.getBoolean("enabled"), rs.getLong("channel"));
+                    if (settings.getGuild() != 0) guilds.put(settings.getGuild(), settings);
+                }
+            }
+
+            try (ResultSet rs = statement.executeQuery("SELECT `id`, `guild`, `name`, `secondary` FROM `" + TEMPLATES + "`")) {
+                while (rs.next()) {
+                    Template template = new Template(rs.getLong("id"), rs.getLong("guild"), rs.getString("name"), rs.getLong("secondary"));
+                    if (template.getId() != 0) indexTemplate(template);
+                }
+            }
+
+            try (ResultSet rs = statement.executeQuery("SELECT `id`, `guild`, `name`, `primary` FROM `" + SECONDARY_TEMPLATES + "`")) {
+                while (rs.next()) {
+                    SecondaryTemplate template = new SecondaryTemplate(rs.getLong("id"), rs.getLong("guild"), rs.getString("name"), rs.getLong("primary"));
+                    if (template.getId() != 0) secondaryTemplates.put(template.getId(), template);
+                }
+            }
+
+            for (Clone clone : journal != null ? journal.getClones() : readClones()) {
+                if (clone.getId() != 0 && clone.getTemplate() != 0) indexClone(clone);
+            }
+
+            try (ResultSet rs = statement.executeQuery("SELECT `key`, `value` FROM `" + META + "`")) {
+                while (rs.next()) meta.put(rs.getString("key"), rs.getString("value"));
+            }
         }
 
-        return new Result(true, null);
+        LOGGER.info("Loaded " + guilds.size() + " guilds, " + templates.size() + " templates and " + clones.size() + " clones");
     }
 
-    public Result registerTemplate(AudioChannel channel, String name, AudioChannel secondary) {
-        if (channel == null || name == null || name.trim().isEmpty()) return new Result(false, "Invalid parameters");
+    private List<Clone> readClones() throws SQLException {
+        List<Clone> clones = new ArrayList<>();
+
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT `id`, `guild`, `template`, `number`, `secondary` FROM `" + CLONES + "`")) {
+            while (rs.next()) {
+                clones.add(new Clone(rs.getLong("id"), rs.getLong("guild"), rs.getLong("template"), rs.getInt("number"), rs.getLong("secondary")));
+            }
+        }
+
+        return clones;
+    }
 
+    private void moveClonesToJournal() throws SQLException, IOException {
+        List<Clone> clones = readClones();
+        if (clones.isEmpty()) return;
+
+        journal.add(clones);
+        journal.compact();
+        clearClones();
+        LOGGER.info("Moved " + clones.size() + " clones to the clone journal");
+    }
+
+    private void moveClonesFromJournal(File journalFile) throws SQLException, IOException {
+        CloneJournal old = new CloneJournal(journalFile);
+        List<Clone> clones = old.getClones();
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
         try {
-            db.addRow(
-                    new String[]{"id", "guild", "name", "secondary"},
-                    new Object[]{channel.getId(), channel.getGuild().getId(), name, secondary != null ? secondary.getId() : null},
-                    TEMPLATES);
+            clearClones();
+            insertClones(connection, clones);
+            connection.commit();
         } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-            return new Result(false, e.getMessage());
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
         }
 
-        return new Result(true, null);
+        old.delete();
+        LOGGER.info("Moved " + clones.size() + " clones from the clone journal back to the database");
     }
 
-    public Result registerSecondaryTemplate(AudioChannel primary, AudioChannel secondary, String name) {
-        if (primary == null || secondary == null || name == null || name.trim().isEmpty()) return new Result(false, "Invalid parameters");
+    private void clearClones() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM `" + CLONES + "`");
+            statement.executeUpdate("DELETE FROM `" + SECONDARY_CLONES + "`");
+        }
+    }
+
+    // Writes are applied by the writer thread, the index is only updated once they are committed.
+    // Index updates run on the writer thread too, so they are applied in the same order as the commits.
+    private CompletableFuture<Result> write(String method, PersistenceWriter.Task task, Runnable onCommit) {
+        long start = System.nanoTime();
+
+        return writer.submit(task, onCommit != null ? () -> update(onCommit) : null).handle((ignored, e) -> {
+            Metrics.DB_WRITE.labels(method).observeSince(start);
+
+            if (e != null) {
+                LOGGER.warn(e.getMessage());
+                return new Result(false, e.getMessage());
+            }
+
+            return new Result(true, null);
+        });
+    }
+
+    // Clone writes in journal mode are a few bytes copied into the mapped journal, there is nothing to batch
+    private CompletableFuture<Result> journal(String method, JournalWrite task, Runnable onCommit) {
+        long start = System.nanoTime();
 
         try {
-            db.addRow(
-                    new String[]{"id", "guild", "name", "primary"},
-                    new Object[]{secondary.getId(), secondary.getGuild().getId(), name, primary.getId()},
-                    SECONDARY_TEMPLATES);
-        } catch (SQLException e) {
+            task.write();
+        } catch (IOException e) {
             LOGGER.warn(e.getMessage());
-            return new Result(false, e.getMessage());
+            return completed(new Result(false, e.getMessage()));
+        } finally {
+            Metrics.DB_WRITE.labels(method).observeSince(start);
         }
 
-        return new Result(true, null);
+        if (onCommit != null) update(onCommit);
+        return completed(new Result(true, null));
+    }
+
+    private void update(Runnable change) {
+        long stamp = lock.writeLock();
+        try {
+            change.run();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
-    public Result unregisterTemplate(AudioChannel channel) {
-        if (channel == null) return new Result(false, "Invalid parameters");
+    private <T> T read(Supplier<T> reader) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = reader.get();
+                if (lock.validate(stamp)) return result;
+            } catch (RuntimeException ignored) {
+                // A write moved things around while reading, the read is retried under the lock
+            }
+        }
 
+        stamp = lock.readLock();
         try {
-            if (db.rowExists(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, TEMPLATES)) {
-                db.removeRow(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, TEMPLATES);
-                return new Result(true, "primary");
-            } else if (db.rowExists(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, SECONDARY_TEMPLATES)) {
-                SecondaryTemplate template = db.getObject(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, SecondaryTemplate.class, SECONDARY_TEMPLATES);
-
-                db.removeRow(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, SECONDARY_TEMPLATES);
-                db.set("secondary", null, new String[]{"id", "guild"}, new Object[]{template.getPrimary(), template.getGuild()}, TEMPLATES);
-                return new Result(true, "secondary");
+            return reader.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static CompletableFuture<Result> completed(Result result) {
+        return CompletableFuture.completedFuture(result);
+    }
+
+    private static void insertClones(Connection connection, Collection<Clone> clones) throws SQLException {
+        try (PreparedStatement primary = connection.prepareStatement("INSERT INTO `" + CLONES + "` (`id`, `guild`, `template`, `number`, `secondary`) VALUES (?, ?, ?, ?, ?)");
+             PreparedStatement secondary = connection.prepareStatement("INSERT INTO `" + SECONDARY_CLONES + "` (`id`, `guild`, `number`) VALUES (?, ?, ?)")) {
+            for (Clone clone : clones) {
+                primary.setLong(1, clone.getId());
+                primary.setLong(2, clone.getGuild());
+                primary.setLong(3, clone.getTemplate());
+                primary.setInt(4, clone.getNumber());
+                primary.setObject(5, snowflake(clone.getSecondary()));
+                primary.addBatch();
+
+                if (!clone.hasSecondary()) continue;
+                secondary.setLong(1, clone.getSecondary());
+                secondary.setLong(2, clone.getGuild());
+                secondary.setInt(3, clone.getNumber());
+                secondary.addBatch();
             }
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-            return new Result(false, e.getMessage());
+
+            primary.executeBatch();
+            secondary.executeBatch();
+            Metrics.DB_STATEMENTS.inc(2);
         }
+    }
+
+    private static void execute(Connection connection, String sql, Object... params) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) statement.setObject(i + 1, params[i]);
 
-        return new Result(true, null);
+            statement.executeUpdate();
+            Metrics.DB_STATEMENTS.inc();
+        }
     }
 
-    public Result addClone(AudioChannel clone, AudioChannel template, AudioChannel secondary, int number) {
-        if (clone == null || template == null) return new Result(false, "Invalid parameters");
+    // Missing snowflakes are stored as NULL
+    private static Long snowflake(long id) {
+        return id != 0 ? id : null;
+    }
 
-        try {
-            db.addRow(
-                    new String[]{"id", "guild", "template", "number", "secondary"},
-                    new Object[]{clone.getId(), clone.getGuild().getId(), template.getId(), number, secondary != null ? secondary.getId() : null},
-                    CLONES);
-            if (secondary != null)
-                db.addRow(
-                        new String[]{"id", "guild", "number"},
-                        new Object[]{secondary.getId(), secondary.getGuild().getId(), number},
-                        SECONDARY_CLONES);
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-            return new Result(false, e.getMessage());
+    private void indexTemplate(Template template) {
+        templates.put(template.getId(), template);
+        channelTemplates.put(template.getId(), template.getId());
+    }
+
+    private void unindexTemplate(long id) {
+        templates.remove(id);
+        channelTemplates.remove(id);
+    }
+
+    private void indexClone(Clone clone) {
+        clones.put(clone.getId(), clone);
+        templateClones.computeIfAbsent(clone.getTemplate(), k -> new LongObjectMap<>()).put(clone.getId(), clone);
+        channelTemplates.put(clone.getId(), clone.getTemplate());
+        if (clone.getNumber() > 0) getAllocator(clone.getTemplate()).reserve(clone.getNumber());
+    }
+
+    private void unindexClone(long id) {
+        Clone clone = clones.remove(id);
+        if (clone == null) return;
+
+        channelTemplates.remove(id);
+        LongObjectMap<Clone> siblings = templateClones.get(clone.getTemplate());
+        if (siblings != null) {
+            siblings.remove(id);
+            if (siblings.isEmpty()) templateClones.remove(clone.getTemplate());
         }
+        if (clone.getNumber() > 0) getAllocator(clone.getTemplate()).release(clone.getNumber());
+    }
 
-        return new Result(true, null);
+    // Must be called while holding the write lock
+    private CloneNumberAllocator getAllocator(long template) {
+        return allocators.computeIfAbsent(template, k -> new CloneNumberAllocator());
     }
 
-    public Result removeClone(Clone clone) {
-        if (clone == null) return new Result(false, "Invalid parameters");
+    private CloneNumberAllocator findAllocator(long template) {
+        CloneNumberAllocator allocator = read(() -> allocators.get(template));
+        if (allocator != null) return allocator;
 
+        long stamp = lock.writeLock();
         try {
-            db.removeRow(new String[]{"id", "guild"}, new Object[]{clone.getId(), clone.getGuild()}, CLONES);
-            if (clone.getSecondary() != null)
-                db.removeRow(new String[]{"id", "guild"}, new Object[]{clone.getSecondary(), clone.getGuild()}, SECONDARY_CLONES);
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-            return new Result(false, e.getMessage());
+            return getAllocator(template);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int allocateCloneNumber(long template) {
+        return findAllocator(template).allocate();
+    }
+
+    public void releaseCloneNumber(long template, int number) {
+        findAllocator(template).release(number);
+    }
+
+    public CompletableFuture<Result> enableBot(Guild guild, TextChannel channel) {
+        if (guild == null) return completed(new Result(false, "Guild is null"));
+
+        return enableBot(guild.getIdLong(), channel.getIdLong());
+    }
+
+    public CompletableFuture<Result> enableBot(long guild, long channel) {
+        return write("enableBot", c -> execute(c, "INSERT INTO `" + GUILDS + "` (`guild`, `enabled`, `channel`) VALUES (?, 1, ?) " +
+                                "ON CONFLICT (`guild`) DO UPDATE SET `enabled` = 1, `channel` = excluded.`channel`",
+                        guild, channel),
+                () -> guilds.put(guild, new GuildSettings(guild, true, channel)));
+    }
+
+    public CompletableFuture<Result> disableBot(Guild guild) {
+        if (guild == null) return completed(new Result(false, "Guild is null"));
+
+        return write("disableBot", c -> execute(c, "INSERT INTO `" + GUILDS + "` (`guild`, `enabled`) VALUES (?, 0) " +
+                                "ON CONFLICT (`guild`) DO UPDATE SET `enabled` = 0",
+                        guild.getIdLong()),
+                () -> {
+                    GuildSettings current = guilds.get(guild.getIdLong());
+                    guilds.put(guild.getIdLong(), new GuildSettings(guild.getIdLong(), false, current != null ? current.getChannel() : 0));
+                });
+    }
+
+    public CompletableFuture<Result> registerTemplate(AudioChannel channel, String name, AudioChannel secondary) {
+        if (channel == null) return completed(new Result(false, "Invalid parameters"));
+
+        return registerTemplate(channel.getIdLong(), channel.getGuild().getIdLong(), name, secondary != null ? secondary.getIdLong() : 0);
+    }
+
+    public CompletableFuture<Result> registerTemplate(long channel, long guild, String name, long secondary) {
+        if (name == null || name.trim().isEmpty()) return completed(new Result(false, "Invalid parameters"));
+
+        Template template = new Template(channel, guild, name, secondary);
+
+        return write("registerTemplate", c -> execute(c, "INSERT INTO `" + TEMPLATES + "` (`id`, `guild`, `name`, `secondary`) VALUES (?, ?, ?, ?)",
+                        template.getId(), template.getGuild(), template.getName(), snowflake(template.getSecondary())),
+                () -> indexTemplate(template));
+    }
+
+    public CompletableFuture<Result> registerSecondaryTemplate(AudioChannel primary, AudioChannel secondary, String name) {
+        if (primary == null || secondary == null || name == null || name.trim().isEmpty()) return completed(new Result(false, "Invalid parameters"));
+
+        SecondaryTemplate template = new SecondaryTemplate(secondary.getIdLong(), secondary.getGuild().getIdLong(), name, primary.getIdLong());
+
+        return write("registerSecondaryTemplate", c -> execute(c, "INSERT INTO `" + SECONDARY_TEMPLATES + "` (`id`, `guild`, `name`, `primary`) VALUES (?, ?, ?, ?)",
+                        template.getId(), template.getGuild(), template.getName(), snowflake(template.getPrimary())),
+                () -> secondaryTemplates.put(template.getId(), template));
+    }
+
+    public CompletableFuture<Result> unregisterTemplate(AudioChannel channel) {
+        if (channel == null) return completed(new Result(false, "Invalid parameters"));
+
+        long id = channel.getIdLong();
+        long guild = channel.getGuild().getIdLong();
+
+        // The template's clone records go with it in the same write, their channels are deleted by the caller
+        Template template = getTemplate(id, guild);
+        if (template != null) {
+            List<Clone> clones = getClones(id, guild);
+
+            return write("unregisterTemplate", c -> {
+                        execute(c, "DELETE FROM `" + TEMPLATES + "` WHERE `id` = ? AND `guild` = ?", id, guild);
+                        execute(c, "DELETE FROM `" + CLONES + "` WHERE `template` = ? AND `guild` = ?", id, guild);
+
+                        try (PreparedStatement secondary = c.prepareStatement("DELETE FROM `" + SECONDARY_CLONES + "` WHERE `id` = ? AND `guild` = ?")) {
+                            for (Clone clone : clones) {
+                                if (!clone.hasSecondary()) continue;
+                                secondary.setLong(1, clone.getSecondary());
+                                secondary.setLong(2, guild);
+                                secondary.addBatch();
+                            }
+
+                            secondary.executeBatch();
+                            Metrics.DB_STATEMENTS.inc();
+                        }
+                    },
+                    () -> {
+                        clones.forEach(clone -> unindexClone(clone.getId()));
+                        unindexTemplate(id);
+                        allocators.remove(id);
+                    })
+                    .thenApply(result -> {
+                        if (!result.isSuccess()) return result;
+
+                        // A clone left in the journal has no template anymore, the reconciliation drops it on the next start
+                        if (journal != null) {
+                            try {
+                                journal.remove(clones);
+                            } catch (IOException e) {
+                                LOGGER.warn("Cannot remove the clones of template " + id + " from the journal: " + e.getMessage());
+                            }
+                        }
+
+                        return new Result(true, "primary");
+                    });
+        }
+
+        SecondaryTemplate secondary = getSecondaryTemplate(guild, id);
+        if (secondary != null) {
+            return write("unregisterTemplate", c -> {
+                        execute(c, "DELETE FROM `" + SECONDARY_TEMPLATES + "` WHERE `id` = ? AND `guild` = ?", id, guild);
+                        execute(c, "UPDATE `" + TEMPLATES + "` SET `secondary` = NULL WHERE `id` = ? AND `guild` = ?",
+                                secondary.getPrimary(), secondary.getGuild());
+                    },
+                    () -> {
+                        secondaryTemplates.remove(id);
+                        Template primary = templates.get(secondary.getPrimary());
+                        if (primary != null) indexTemplate(new Template(primary.getId(), primary.getGuild(), primary.getName(), 0));
+                    })
+                    .thenApply(result -> result.isSuccess() ? new Result(true, "secondary") : result);
         }
 
-        return new Result(true, null);
+        return completed(new Result(true, null));
+    }
+
+    public CompletableFuture<Result> addClone(AudioChannel clone, AudioChannel template, AudioChannel secondary, int number) {
+        if (clone == null || template == null) return completed(new Result(false, "Invalid parameters"));
+
+        Clone entry = new Clone(clone.getIdLong(), clone.getGuild().getIdLong(), template.getIdLong(), number, secondary != null ? secondary.getIdLong() : 0);
+        if (journal != null) return journal("addClone", () -> journal.add(Collections.singletonList(entry)), () -> indexClone(entry));
+
+        return write("addClone", c -> {
+                    execute(c, "INSERT INTO `" + CLONES + "` (`id`, `guild`, `template`, `number`, `secondary`) VALUES (?, ?, ?, ?, ?)",
+                            entry.getId(), entry.getGuild(), entry.getTemplate(), number, snowflake(entry.getSecondary()));
+                    if (entry.hasSecondary())
+                        execute(c, "INSERT INTO `" + SECONDARY_CLONES + "` (`id`, `guild`, `number`) VALUES (?, ?, ?)",
+                                entry.getSecondary(), entry.getGuild(), number);
+                },
+                () -> indexClone(entry));
+    }
+
+    // All the clones are stored in a single transaction, and only indexed once it committed
+    public CompletableFuture<Result> addClones(Collection<Clone> clones) {
+        if (clones == null || clones.isEmpty()) return completed(new Result(true, null));
+
+        List<Clone> added = new ArrayList<>(clones);
+        if (journal != null) return journal("addClones", () -> journal.add(added), () -> added.forEach(this::indexClone));
+
+        return write("addClones", c -> insertClones(c, added), () -> added.forEach(this::indexClone));
+    }
+
+    // The clone is dropped from the index right away, its channel is already being deleted whatever happens to the write.
+    public CompletableFuture<Result> removeClone(Clone clone) {
+        if (clone == null) return completed(new Result(false, "Invalid parameters"));
+
+        update(() -> unindexClone(clone.getId()));
+        if (journal != null) return journal("removeClone", () -> journal.remove(Collections.singletonList(clone)), null);
+
+        return write("removeClone", c -> {
+            execute(c, "DELETE FROM `" + CLONES + "` WHERE `id` = ? AND `guild` = ?", clone.getId(), clone.getGuild());
+            if (clone.hasSecondary())
+                execute(c, "DELETE FROM `" + SECONDARY_CLONES + "` WHERE `id` = ? AND `guild` = ?", clone.getSecondary(), clone.getGuild());
+        }, null);
     }
 
-    public String getChannel(Guild guild) {
-        if (guild == null) return null;
+    public CompletableFuture<Result> removeClones(Collection<Clone> clones) {
+        if (clones == null || clones.isEmpty()) return completed(new Result(true, null));
+
+        List<Clone> removed = new ArrayList<>(clones);
+        update(() -> removed.forEach(clone -> unindexClone(clone.getId())));
+        if (journal != null) return journal("removeClones", () -> journal.remove(removed), null);
+
+        return write("removeClones", c -> {
+            try (PreparedStatement primary = c.prepareStatement("DELETE FROM `" + CLONES + "` WHERE `id` = ? AND `guild` = ?");
+                 PreparedStatement secondary = c.prepareStatement("DELETE FROM `" + SECONDARY_CLONES + "` WHERE `id` = ? AND `guild` = ?")) {
+                for (Clone clone : removed) {
+                    primary.setLong(1, clone.getId());
+                    primary.setLong(2, clone.getGuild());
+                    primary.addBatch();
+
+                    if (!clone.hasSecondary()) continue;
+                    secondary.setLong(1, clone.getSecondary());
+                    secondary.setLong(2, clone.getGuild());
+                    secondary.addBatch();
+                }
+
+                primary.executeBatch();
+                secondary.executeBatch();
+                Metrics.DB_STATEMENTS.inc(2);
+            }
+        }, null);
+    }
+
+    public String getMeta(String key) {
+        return meta.get(key);
+    }
+
+    public CompletableFuture<Result> setMeta(String key, String value) {
+        if (key == null || value == null) return completed(new Result(false, "Key and value cannot be null"));
+
+        return write("setMeta", c -> execute(c, "INSERT INTO `" + META + "` (`key`, `value`) VALUES (?, ?) " +
+                                "ON CONFLICT (`key`) DO UPDATE SET `value` = excluded.`value`",
+                        key, value),
+                () -> meta.put(key, value));
+    }
+
+    public int getPendingWrites() {
+        return writer.getPending();
+    }
+
+    public void close() {
+        writer.close();
+        if (journal != null) journal.close();
 
         try {
-            if (db.rowExists("guild", guild.getId(), GUILDS))
-                return db.getString("channel", "guild", guild.getId(), GUILDS);
+            connection.close();
         } catch (SQLException e) {
             LOGGER.warn(e.getMessage());
-            return null;
         }
+    }
+
+    public long getChannel(Guild guild) {
+        if (guild == null) return 0;
 
-        return null;
+        GuildSettings settings = read(() -> guilds.get(guild.getIdLong()));
+        return settings != null ? settings.getChannel() : 0;
     }
 
     public boolean isEnabled(Guild guild) {
         if (guild == null) return false;
 
-        try {
-            if (db.rowExists("guild", guild.getId(), GUILDS))
-                return db.getBoolean("guild", guild.getId(), "enabled", GUILDS);
-            return false;
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-            return false;
-        }
+        return isEnabled(guild.getIdLong());
+    }
+
+    public boolean isEnabled(long guild) {
+        GuildSettings settings = read(() -> guilds.get(guild));
+        return settings != null && settings.isEnabled();
     }
 
     public boolean isRegistered(AudioChannel channel) {
         if (channel == null) return false;
 
-        try {
-            if (db.rowExists(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, TEMPLATES)) return true;
-            return db.rowExists(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, CLONES);
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-            return false;
-        }
+        return isRegistered(channel.getIdLong(), channel.getGuild().getIdLong());
+    }
+
+    public boolean isRegistered(long channel, long guild) {
+        return getTemplate(channel, guild) != null || getClone(channel, guild) != null;
     }
 
     public Template getTemplate(AudioChannel channel) {
         if (channel == null) return null;
 
-        try {
-            if (db.rowExists(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, TEMPLATES)) {
-                return db.getObject(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, Template.class, TEMPLATES);
-            } else {
-                if (db.rowExists(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, CLONES)) {
-                    String templateId = db.getString(new String[]{"id", "guild"}, new Object[]{channel.getId(), channel.getGuild().getId()}, "template", CLONES);
-                    return getTemplate(templateId, channel.getGuild().getId());
-                }
-            }
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-        }
+        return resolveTemplate(channel.getIdLong(), channel.getGuild().getIdLong());
+    }
 
-        return null;
+    // Returns the template of a channel, whether the channel is the template itself or one of its clones
+    public Template resolveTemplate(long channel, long guild) {
+        Template template = read(() -> templates.get(channelTemplates.get(channel, 0)));
+        return template != null && template.getGuild() == guild ? template : null;
     }
 
-    public Template getTemplate(String id, String guild) {
-        if (id == null || guild == null) return null;
+    public Template getTemplate(long id, long guild) {
+        Template template = read(() -> templates.get(id));
+        return template != null && template.getGuild() == guild ? template : null;
+    }
 
-        try {
-            return db.getObject(new String[]{"id", "guild"}, new Object[]{id, guild}, Template.class, TEMPLATES);
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-        }
+    public List<Template> getTemplates() {
+        return read(templates::values);
+    }
 
-        return null;
+    public SecondaryTemplate getSecondaryTemplate(long guild, long id) {
+        SecondaryTemplate template = read(() -> secondaryTemplates.get(id));
+        return template != null && template.getGuild() == guild ? template : null;
     }
 
-    public SecondaryTemplate getSecondaryTemplate(String guild, String id) {
-        if (guild == null || id == null) return null;
+    public Clone getClone(long id, long guild) {
+        Clone clone = read(() -> clones.get(id));
+        return clone != null && clone.getGuild() == guild ? clone : null;
+    }
 
-        try {
-            return db.getObject(new String[]{"id", "guild"}, new Object[]{id, guild}, SecondaryTemplate.class, SECONDARY_TEMPLATES);
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-        }
+    public List<Clone> getClones() {
+        return read(clones::values);
+    }
+
+    public int getCloneCount() {
+        return read(clones::size);
+    }
 
-        return null;
+    public int getCloneCount(long template) {
+        return read(() -> {
+            LongObjectMap<Clone> siblings = templateClones.get(template);
+            return siblings != null ? siblings.size() : 0;
+        });
     }
 
     public List<Clone> getClones(Template template) {
         if (template == null) return new ArrayList<>();
 
-        try {
-            return db.getList(new String[]{"guild", "template"}, new Object[]{template.getGuild(), template.getId()}, Clone.class, CLONES);
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-        }
-
-        return new ArrayList<>();
+        return getClones(template.getId(), template.getGuild());
     }
 
     public List<Clone> getClones(AudioChannel channel) {
         if (channel == null) return new ArrayList<>();
 
-        try {
-            return db.getList(new String[]{"guild", "template"}, new Object[]{channel.getGuild().getId(), channel.getId()}, Clone.class, CLONES);
-        } catch (SQLException e) {
-            LOGGER.warn(e.getMessage());
-        }
+        return getClones(channel.getIdLong(), channel.getGuild().getIdLong());
+    }
+
+    public List<Clone> getClones(long template, long guild) {
+        List<Clone> siblings = read(() -> {
+            LongObjectMap<Clone> map = templateClones.get(template);
+            return map != null ? map.values() : new ArrayList<>();
+        });
 
-        return new ArrayList<>();
+        siblings.removeIf(clone -> clone.getGuild() != guild);
+        return siblings;
     }
 
     public static class Result {
@@ -323,4 +791,9 @@ public class Database {
             return error;
         }
     }
+
+    @FunctionalInterface
+    private interface JournalWrite {
+        void write() throws IOException;
+    }
 }
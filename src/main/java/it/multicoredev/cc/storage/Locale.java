@@ -1,6 +1,7 @@
 package it.multicoredev.cc.storage;
 
 import com.google.gson.annotations.SerializedName;
+import it.multicoredev.cc.utils.MessageTemplate;
 import it.multicoredev.mclib.json.JsonConfig;
 import net.dv8tion.jda.api.interactions.DiscordLocale;
 
@@ -62,6 +63,10 @@ public class Locale extends JsonConfig {
     @SerializedName("command_descriptions")
     public Map<String, String> commandDescriptions;
 
+    private transient MessageTemplate internalErrorTemplate;
+    private transient MessageTemplate templateRegisteredTemplate;
+    private transient MessageTemplate templateRegisteredSecondaryTemplate;
+
     public Locale(DiscordLocale locale) {
         this.locale = locale.getLocale();
     }
@@ -99,9 +104,25 @@ public class Locale extends JsonConfig {
         if (!commandDescriptions.containsKey("unregister")) commandDescriptions.put("unregister", "Remove a voice channel from the models");
         if (!commandDescriptions.containsKey("unregister:channel")) commandDescriptions.put("unregister:channel", "The channel to unregister");
 
+        internalErrorTemplate = MessageTemplate.compile(internalError, "error");
+        templateRegisteredTemplate = MessageTemplate.compile(templateRegistered, "name");
+        templateRegisteredSecondaryTemplate = MessageTemplate.compile(templateRegisteredSecondary, "name", "secondary");
+
         return this;
     }
 
+    public String internalError(String error) {
+        return internalErrorTemplate.render(error);
+    }
+
+    public String templateRegistered(String name) {
+        return templateRegisteredTemplate.render(name);
+    }
+
+    public String templateRegistered(String name, String secondary) {
+        return templateRegisteredSecondaryTemplate.render(name, secondary);
+    }
+
     public DiscordLocale getLocale() {
         if (locale == null) return DiscordLocale.UNKNOWN;
         return DiscordLocale.from(locale);
@@ -0,0 +1,168 @@
+package it.multicoredev.cc.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static it.multicoredev.cc.ChannelCloner.LOGGER;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class OccupancyHistory {
+    public static final int SLOT_MINUTES = 15;
+    public static final int SLOTS = (int) (TimeUnit.DAYS.toMinutes(7) / SLOT_MINUTES);
+    private static final int MAGIC = 0x43434f48;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    // Weight of the newest week in a slot's average, older weeks fade out over a month or so
+    private static final float ALPHA = 0.3f;
+    private static final float UNKNOWN = -1;
+
+    private final File dir;
+    private final Map<Long, Series> series = new ConcurrentHashMap<>();
+
+    // Every template has a fixed size file with one value per 15 minutes slot of the week, used as a ring over the week:
+    // the average peak of occupied channels seen in that slot in the past weeks.
+    public OccupancyHistory(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create history directory " + dir.getPath());
+        this.dir = dir;
+    }
+
+    public static int slot(long time) {
+        return (int) ((TimeUnit.MILLISECONDS.toMinutes(time) / SLOT_MINUTES) % SLOTS);
+    }
+
+    // Samples must come from a single thread per template. Returns the peak of the slot that just closed and the value
+    // that was predicted for it, or null while the slot is still open.
+    public int[] record(long template, long time, int occupied) throws IOException {
+        Series s = get(template);
+        int slot = slot(time);
+
+        // A slot that was only partly seen, like the first one after a restart, is not learned
+        if (s.slot < 0) {
+            s.start(slot, occupied);
+            return null;
+        }
+
+        if (slot == s.slot) {
+            s.peak = Math.max(s.peak, occupied);
+            return null;
+        }
+
+        float learned = s.profile[s.slot];
+        int[] closed = learned == UNKNOWN ? null : new int[]{s.peak, Math.round(learned)};
+
+        s.learn(s.slot, learned == UNKNOWN ? s.peak : learned + ALPHA * (s.peak - learned));
+        s.start(slot, occupied);
+        return closed;
+    }
+
+    // The highest average peak between now and the lookahead, or -1 if nothing was learned for that time yet
+    public float predict(long template, long time, long lookahead) throws IOException {
+        Series s = get(template);
+        float peak = UNKNOWN;
+
+        for (long t = time; t < time + lookahead; t += TimeUnit.MINUTES.toMillis(SLOT_MINUTES)) {
+            peak = Math.max(peak, s.profile[slot(t)]);
+        }
+
+        return Math.max(peak, s.profile[slot(time + lookahead)]);
+    }
+
+    public void remove(long template) {
+        series.remove(template);
+
+        File file = file(template);
+        if (file.exists() && !file.delete()) LOGGER.warn("Cannot delete occupancy history " + file.getName());
+    }
+
+    private Series get(long template) throws IOException {
+        Series s = series.get(template);
+        if (s != null) return s;
+
+        s = new Series(file(template));
+        Series previous = series.putIfAbsent(template, s);
+        return previous != null ? previous : s;
+    }
+
+    private File file(long template) {
+        return new File(dir, template + ".bin");
+    }
+
+    private static class Series {
+        private final File file;
+        private final float[] profile = new float[SLOTS];
+        // The slot being sampled and its peak so far, only learned once the slot is over
+        private int slot = -1;
+        private int peak;
+
+        private Series(File file) throws IOException {
+            this.file = file;
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(HEADER + SLOTS * 4);
+
+                if (channel.size() == buffer.capacity()) {
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, buffer.position()) < 0) break;
+                    }
+
+                    if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(8) == SLOT_MINUTES && buffer.getInt(12) == SLOTS) {
+                        for (int i = 0; i < SLOTS; i++) profile[i] = buffer.getFloat(HEADER + i * 4);
+                        return;
+                    }
+                }
+
+                // Missing or unreadable, the template starts over with nothing learned
+                Arrays.fill(profile, UNKNOWN);
+                buffer.clear();
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(SLOT_MINUTES).putInt(SLOTS);
+                for (int i = 0; i < SLOTS; i++) buffer.putFloat(UNKNOWN);
+                buffer.flip();
+
+                channel.truncate(0);
+                while (buffer.hasRemaining()) channel.write(buffer, buffer.position());
+            }
+        }
+
+        private void start(int slot, int peak) {
+            this.slot = slot;
+            this.peak = peak;
+        }
+
+        // Slots close every 15 minutes, only the 4 bytes of the slot are written
+        private void learn(int slot, float average) throws IOException {
+            profile[slot] = average;
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(HEADER + slot * 4L);
+                raf.writeFloat(average);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package it.multicoredev.cc.storage;
+
+import it.multicoredev.cc.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static it.multicoredev.cc.ChannelCloner.LOGGER;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class PersistenceWriter {
+    private final Connection connection;
+    private final int batchSize;
+    private final long batchDelay;
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    // Futures are completed here so callers' callbacks never run on the writer thread
+    private final Executor callbacks = ForkJoinPool.commonPool();
+    private final Thread thread;
+    private final Object lifecycle = new Object();
+    private volatile boolean running = true;
+
+    public PersistenceWriter(Connection connection, int batchSize, long batchDelay, TimeUnit unit) {
+        this.connection = connection;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchDelay = unit.toNanos(batchDelay);
+
+        thread = new Thread(this::run, "ChannelCloner-Writer");
+        thread.start();
+    }
+
+    // onCommit runs on the writer thread right after the commit, in the order the writes were submitted
+    public CompletableFuture<Void> submit(Task task, Runnable onCommit) {
+        Write write = new Write(task, onCommit);
+
+        // close() cannot stop the writer between the check and the add, so an accepted write is always drained
+        synchronized (lifecycle) {
+            if (running) {
+                queue.add(write);
+                return write.future;
+            }
+        }
+
+        write.future.completeExceptionally(new SQLException("Database is closed"));
+        return write.future;
+    }
+
+    public int getPending() {
+        return queue.size();
+    }
+
+    public void close() {
+        synchronized (lifecycle) {
+            running = false;
+        }
+        thread.interrupt();
+
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>(batchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Write first = running ? queue.take() : queue.poll();
+                if (first == null) break;
+                batch.add(first);
+
+                // Wait a little for more writes so they can share the same commit
+                long deadline = System.nanoTime() + batchDelay;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Write next = remaining > 0 && running ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException ignored) {
+                if (batch.isEmpty()) continue;
+            }
+
+            long start = System.nanoTime();
+            commit(batch);
+            Metrics.DB_COMMIT.observeSince(start);
+            batch.clear();
+        }
+    }
+
+    // Each write runs inside its own savepoint, a failing write is rolled back alone and does not fail the rest of the batch.
+    private void commit(List<Write> batch) {
+        List<Write> applied = new ArrayList<>(batch.size());
+
+        try (Statement statement = connection.createStatement()) {
+            connection.setAutoCommit(false);
+
+            for (Write write : batch) {
+                statement.execute("SAVEPOINT `write`");
+
+                try {
+                    write.task.run(connection);
+                    statement.execute("RELEASE `write`");
+                    applied.add(write);
+                } catch (SQLException e) {
+                    statement.execute("ROLLBACK TO `write`");
+                    statement.execute("RELEASE `write`");
+                    fail(write, e);
+                }
+            }
+
+            connection.commit();
+
+            for (Write write : applied) {
+                if (write.onCommit == null) continue;
+
+                try {
+                    write.onCommit.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Cannot apply a committed write: " + e.getMessage());
+                }
+            }
+            callbacks.execute(() -> applied.forEach(write -> write.future.complete(null)));
+        } catch (SQLException e) {
+            LOGGER.warn("Cannot commit " + batch.size() + " writes: " + e.getMessage());
+
+            try {
+                connection.rollback();
+            } catch (SQLException ignored) {
+            }
+
+            applied.forEach(write -> fail(write, e));
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private void fail(Write write, SQLException e) {
+        callbacks.execute(() -> write.future.completeExceptionally(e));
+    }
+
+    @FunctionalInterface
+    public interface Task {
+        void run(Connection connection) throws SQLException;
+    }
+
+    private static class Write {
+        private final Task task;
+        private final Runnable onCommit;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Write(Task task, Runnable onCommit) {
+            this.task = task;
+            this.onCommit = onCommit;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package it.multicoredev.cc.storage;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static it.multicoredev.cc.ChannelCloner.LOGGER;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class SchemaMigrator {
+    private static final String VERSION_TABLE = "schema_version";
+
+    private final Connection connection;
+    private final TreeMap<Integer, Migration> migrations = new TreeMap<>();
+    private final Map<Integer, String> descriptions = new TreeMap<>();
+
+    public SchemaMigrator(Connection connection) {
+        this.connection = connection;
+    }
+
+    public SchemaMigrator register(int version, String description, Migration migration) {
+        if (version <= 0) throw new IllegalArgumentException("Migration version must be greater than 0");
+        if (migrations.containsKey(version)) throw new IllegalArgumentException("Migration " + version + " is already registered");
+
+        migrations.put(version, migration);
+        descriptions.put(version, description);
+        return this;
+    }
+
+    // Brings the schema to the latest version. Each migration runs in its own transaction together with the version bump,
+    // so a failure leaves the database at the last version that was fully applied.
+    public int migrate(File database) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + VERSION_TABLE + "` (" +
+                    "`version` INTEGER PRIMARY KEY, " +
+                    "`description` VARCHAR(100) NOT NULL, " +
+                    "`applied` INTEGER NOT NULL)");
+        }
+
+        int current = getVersion();
+        int latest = migrations.isEmpty() ? current : migrations.lastKey();
+        if (current >= latest) return current;
+
+        File backup = new File(database.getAbsoluteFile().getParentFile(), database.getName() + ".v" + current + ".bak");
+        if (!backup.exists() && hasData()) {
+            LOGGER.info("Backing up database to " + backup.getName() + " before migrating from version " + current + " to " + latest + "...");
+
+            try (PreparedStatement statement = connection.prepareStatement("VACUUM INTO ?")) {
+                statement.setString(1, backup.getAbsolutePath());
+                statement.executeUpdate();
+            }
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try {
+            for (Map.Entry<Integer, Migration> entry : migrations.entrySet()) {
+                int version = entry.getKey();
+                if (version <= current) continue;
+
+                try (Statement statement = connection.createStatement();
+                     PreparedStatement insert = connection.prepareStatement("INSERT INTO `" + VERSION_TABLE + "` (`version`, `description`, `applied`) VALUES (?, ?, ?)")) {
+                    entry.getValue().migrate(statement);
+
+                    insert.setInt(1, version);
+                    insert.setString(2, descriptions.get(version));
+                    insert.setLong(3, System.currentTimeMillis());
+                    insert.executeUpdate();
+
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw new SQLException("Migration to version " + version + " failed: " + e.getMessage(), e);
+                }
+
+                LOGGER.info("Migrated database to version " + version + " (" + descriptions.get(version) + ")");
+                current = version;
+            }
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        return current;
+    }
+
+    public int getVersion() throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT MAX(`version`) FROM `" + VERSION_TABLE + "`")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private boolean hasData() throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM `sqlite_master` WHERE `type` = 'table' AND `name` NOT LIKE 'sqlite_%' AND `name` != '" + VERSION_TABLE + "'")) {
+            return rs.next() && rs.getInt(1) > 0;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Migration {
+        void migrate(Statement statement) throws SQLException;
+    }
+}
@@ -1,7 +1,12 @@
 package it.multicoredev.cc.storage;
 
+import com.google.gson.annotations.SerializedName;
+import it.multicoredev.cc.utils.LongLongMap;
 import it.multicoredev.mclib.json.JsonConfig;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Copyright © 2021 - 2022 by Lorenzo Magni
  * This file is part of ChannelCloner.
@@ -24,10 +29,78 @@ import it.multicoredev.mclib.json.JsonConfig;
  */
 public class Settings extends JsonConfig {
     private String token;
+    @SerializedName("warm_pool")
+    private Integer warmPool;
+    @SerializedName("template_warm_pools")
+    private Map<String, Integer> templateWarmPools;
+    @SerializedName("deletion_grace_period")
+    private Integer deletionGracePeriod;
+    @SerializedName("scale_down_hysteresis")
+    private Integer scaleDownHysteresis;
+    @SerializedName("template_scale_down_hysteresis")
+    private Map<String, Integer> templateScaleDownHysteresis;
+    @SerializedName("write_batch_size")
+    private Integer writeBatchSize;
+    @SerializedName("write_batch_delay")
+    private Integer writeBatchDelay;
+    @SerializedName("gateway_profile")
+    private String gatewayProfile;
+    @SerializedName("shards_total")
+    private Integer shardsTotal;
+    @SerializedName("shard_min")
+    private Integer shardMin;
+    @SerializedName("shard_max")
+    private Integer shardMax;
+    @SerializedName("rest_max_in_flight")
+    private Integer restMaxInFlight;
+    @SerializedName("guild_max_in_flight")
+    private Integer guildMaxInFlight;
+    @SerializedName("guild_weights")
+    private Map<String, Integer> guildWeights;
+    @SerializedName("metrics_address")
+    private String metricsAddress;
+    @SerializedName("metrics_port")
+    private Integer metricsPort;
+    @SerializedName("virtual_threads")
+    private Boolean virtualThreads;
+    @SerializedName("burst_window")
+    private Integer burstWindow;
+    @SerializedName("clone_store")
+    private String cloneStore;
+    @SerializedName("prediction")
+    private String prediction;
+    @SerializedName("prediction_lead")
+    private Integer predictionLead;
+
+    // The per-template and per-guild maps are keyed by snowflake strings in the file, lookups go through these
+    private transient volatile LongLongMap warmPoolIndex;
+    private transient volatile LongLongMap hysteresisIndex;
+    private transient volatile LongLongMap weightIndex;
 
     @Override
     public Settings init() {
         if (token == null) token = "";
+        if (warmPool == null || warmPool < 1) warmPool = 1;
+        if (templateWarmPools == null) templateWarmPools = new HashMap<>();
+        if (deletionGracePeriod == null || deletionGracePeriod < 0) deletionGracePeriod = 15;
+        if (scaleDownHysteresis == null || scaleDownHysteresis < 0) scaleDownHysteresis = 0;
+        if (templateScaleDownHysteresis == null) templateScaleDownHysteresis = new HashMap<>();
+        if (writeBatchSize == null || writeBatchSize < 1) writeBatchSize = 128;
+        if (writeBatchDelay == null || writeBatchDelay < 0) writeBatchDelay = 5;
+        if (gatewayProfile == null || !(gatewayProfile.equals("default") || gatewayProfile.equals("lean"))) gatewayProfile = "default";
+        if (shardsTotal == null || shardsTotal < 1) shardsTotal = -1;
+        if (shardMin == null || shardMin < 0) shardMin = -1;
+        if (shardMax == null || shardMax < shardMin) shardMax = shardMin;
+        if (restMaxInFlight == null || restMaxInFlight < 1) restMaxInFlight = 16;
+        if (guildMaxInFlight == null || guildMaxInFlight < 1) guildMaxInFlight = 2;
+        if (guildWeights == null) guildWeights = new HashMap<>();
+        if (metricsAddress == null || metricsAddress.trim().isEmpty()) metricsAddress = "127.0.0.1";
+        if (metricsPort == null || metricsPort < 0 || metricsPort > 65535) metricsPort = 0;
+        if (virtualThreads == null) virtualThreads = false;
+        if (burstWindow == null || burstWindow < 0) burstWindow = 200;
+        if (cloneStore == null || !(cloneStore.equals("sqlite") || cloneStore.equals("journal"))) cloneStore = "sqlite";
+        if (prediction == null || !(prediction.equals("off") || prediction.equals("dry_run") || prediction.equals("on"))) prediction = "off";
+        if (predictionLead == null || predictionLead < 1) predictionLead = 10;
 
         return this;
     }
@@ -35,4 +108,116 @@ public class Settings extends JsonConfig {
     public String getToken() {
         return token;
     }
+
+    public int getWarmPool(long template) {
+        if (warmPoolIndex == null) warmPoolIndex = index(templateWarmPools, 1);
+        return (int) warmPoolIndex.get(template, warmPool);
+    }
+
+    public int getDeletionGracePeriod() {
+        return deletionGracePeriod;
+    }
+
+    public int getScaleDownHysteresis(long template) {
+        if (hysteresisIndex == null) hysteresisIndex = index(templateScaleDownHysteresis, 0);
+        return (int) hysteresisIndex.get(template, scaleDownHysteresis);
+    }
+
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    public int getWriteBatchDelay() {
+        return writeBatchDelay;
+    }
+
+    public String getGatewayProfile() {
+        return gatewayProfile;
+    }
+
+    public boolean isLeanGateway() {
+        return gatewayProfile.equals("lean");
+    }
+
+    // -1 lets Discord choose the number of shards
+    public int getShardsTotal() {
+        return shardsTotal;
+    }
+
+    // -1 runs every shard in this process
+    public int getShardMin() {
+        return shardMin;
+    }
+
+    public int getShardMax() {
+        return shardMax;
+    }
+
+    public int getRestMaxInFlight() {
+        return restMaxInFlight;
+    }
+
+    public int getGuildMaxInFlight() {
+        return guildMaxInFlight;
+    }
+
+    public int getGuildWeight(long guild) {
+        if (weightIndex == null) weightIndex = index(guildWeights, 1);
+        return (int) weightIndex.get(guild, 1);
+    }
+
+    // Entries with an invalid id or a value below min are ignored, like missing ones
+    private static LongLongMap index(Map<String, Integer> values, int min) {
+        LongLongMap index = new LongLongMap(values.size());
+
+        values.forEach((id, value) -> {
+            if (value == null || value < min) return;
+
+            try {
+                long snowflake = Long.parseLong(id);
+                if (snowflake != 0) index.put(snowflake, value);
+            } catch (NumberFormatException ignored) {
+            }
+        });
+
+        return index;
+    }
+
+    public String getMetricsAddress() {
+        return metricsAddress;
+    }
+
+    // 0 keeps the metrics endpoint disabled
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    // Only honored on Java 21+, older runtimes keep platform threads
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    // Milliseconds voice events of a template are gathered for before it is rebalanced
+    public int getBurstWindow() {
+        return burstWindow;
+    }
+
+    // "journal" keeps the clones in a memory mapped journal instead of the SQLite tables
+    public boolean isCloneJournal() {
+        return cloneStore.equals("journal");
+    }
+
+    // "off", "dry_run" to only log what would be pre-scaled, or "on"
+    public boolean isPredictionEnabled() {
+        return !prediction.equals("off");
+    }
+
+    public boolean isPredictionDryRun() {
+        return prediction.equals("dry_run");
+    }
+
+    // Minutes ahead of a predicted peak its channels are created
+    public int getPredictionLead() {
+        return predictionLead;
+    }
 }
@@ -23,13 +23,13 @@ import org.jetbrains.annotations.NotNull;
  * THE POSSIBILITY OF SUCH DAMAGE.
  */
 public class Clone implements Comparable<Clone> {
-    private String id;
-    private String guild;
-    private String template;
-    private Integer number;
-    private String secondary;
+    private long id;
+    private long guild;
+    private long template;
+    private int number;
+    private long secondary;
 
-    public Clone(String id, String guild, String template, Integer number, String secondary) {
+    public Clone(long id, long guild, long template, int number, long secondary) {
         this.id = id;
         this.guild = guild;
         this.template = template;
@@ -37,36 +37,32 @@ public class Clone implements Comparable<Clone> {
         this.secondary = secondary;
     }
 
-    public String getId() {
-        if (id == null) return null;
-        if (id.equals("null")) return null;
+    public long getId() {
         return id;
     }
 
-    public String getGuild() {
-        if (guild == null) return null;
-        if (guild.equals("null")) return null;
+    public long getGuild() {
         return guild;
     }
 
-    public String getTemplate() {
-        if (template == null) return null;
-        if (template.equals("null")) return null;
+    public long getTemplate() {
         return template;
     }
 
-    public Integer getNumber() {
+    public int getNumber() {
         return number;
     }
 
-    public String getSecondary() {
-        if (secondary == null) return null;
-        if (secondary.equals("null")) return null;
+    public long getSecondary() {
         return secondary;
     }
 
+    public boolean hasSecondary() {
+        return secondary != 0;
+    }
+
     @Override
     public int compareTo(@NotNull Clone o) {
-        return number.compareTo(o.number);
+        return Integer.compare(number, o.number);
     }
 }
@@ -21,39 +21,31 @@ package it.multicoredev.cc.storage.models;
  * THE POSSIBILITY OF SUCH DAMAGE.
  */
 public class SecondaryTemplate {
-    private String id;
-    private String guild;
+    private long id;
+    private long guild;
     private String name;
-    private String primary;
+    private long primary;
 
-    public SecondaryTemplate(String id, String guild, String name, String primary) {
+    public SecondaryTemplate(long id, long guild, String name, long primary) {
         this.id = id;
         this.guild = guild;
         this.name = name;
         this.primary = primary;
     }
 
-    public String getId() {
-        if (id == null) return null;
-        if (id.equals("null")) return null;
+    public long getId() {
         return id;
     }
 
-    public String getGuild() {
-        if (guild == null) return null;
-        if (guild.equals("null")) return null;
+    public long getGuild() {
         return guild;
     }
 
     public String getName() {
-        if (name == null) return null;
-        if (name.equals("null")) return null;
         return name;
     }
 
-    public String getPrimary() {
-        if (primary == null) return null;
-        if (primary.equals("null")) return null;
+    public long getPrimary() {
         return primary;
     }
 }
@@ -21,39 +21,36 @@ package it.multicoredev.cc.storage.models;
  * THE POSSIBILITY OF SUCH DAMAGE.
  */
 public class Template {
-    private String id;
-    private String guild;
+    private long id;
+    private long guild;
     private String name;
-    private String secondary;
+    private long secondary;
 
-    public Template(String id, String guild, String name, String secondary) {
+    // Snowflakes are never 0, a template without a secondary channel has secondary set to 0
+    public Template(long id, long guild, String name, long secondary) {
         this.id = id;
         this.guild = guild;
         this.name = name;
         this.secondary = secondary;
     }
 
-    public String getId() {
-        if (id == null) return null;
-        if (id.equals("null")) return null;
+    public long getId() {
         return id;
     }
 
-    public String getGuild() {
-        if (guild == null) return null;
-        if (guild.equals("null")) return null;
+    public long getGuild() {
         return guild;
     }
 
     public String getName() {
-        if (name == null) return null;
-        if (name.equals("null")) return null;
         return name;
     }
 
-    public String getSecondary() {
-        if (secondary == null) return null;
-        if (secondary.equals("null")) return null;
+    public long getSecondary() {
         return secondary;
     }
+
+    public boolean hasSecondary() {
+        return secondary != 0;
+    }
 }
@@ -0,0 +1,187 @@
+package it.multicoredev.cc.utils;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class LongLongMap {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // Same layout as LongObjectMap, with the values stored inline
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private int resizeAt;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    public LongLongMap(int expected) {
+        allocate(LongObjectMap.capacity(expected));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    public long get(long key, long missing) {
+        if (key == 0) return missing;
+
+        long[] keys = this.keys;
+        long[] values = this.values;
+        int mask = keys.length - 1;
+
+        for (int i = LongObjectMap.hash(key) & mask, probes = 0; probes < keys.length; i = (i + 1) & mask, probes++) {
+            long k = keys[i];
+            if (k == 0) return missing;
+            if (k == key) return i < values.length ? values[i] : missing;
+        }
+
+        return missing;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) return false;
+
+        // Bounded like get, an optimistic reader may see a table that is being resized or shifted
+        long[] keys = this.keys;
+        int mask = keys.length - 1;
+        for (int i = LongObjectMap.hash(key) & mask, probes = 0; probes < keys.length; i = (i + 1) & mask, probes++) {
+            long k = keys[i];
+            if (k == 0) return false;
+            if (k == key) return true;
+        }
+
+        return false;
+    }
+
+    public void put(long key, long value) {
+        if (key == 0) throw new IllegalArgumentException("0 is not a valid key");
+
+        int i = find(key);
+        if (keys[i] == key) {
+            values[i] = value;
+            return;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt) resize();
+    }
+
+    // Adds delta to the value of key, missing keys start from 0. Returns the new value.
+    public long addTo(long key, long delta) {
+        if (key == 0) throw new IllegalArgumentException("0 is not a valid key");
+
+        int i = find(key);
+        if (keys[i] == key) return values[i] += delta;
+
+        keys[i] = key;
+        values[i] = delta;
+        if (++size > resizeAt) resize();
+        return delta;
+    }
+
+    public boolean remove(long key) {
+        if (key == 0) return false;
+
+        int i = find(key);
+        if (keys[i] != key) return false;
+
+        shiftBack(i);
+        size--;
+        return true;
+    }
+
+    // Slot holding key, or the empty slot where it would be inserted
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = LongObjectMap.hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    private void shiftBack(int free) {
+        int mask = keys.length - 1;
+
+        for (int i = (free + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            int ideal = LongObjectMap.hash(keys[i]) & mask;
+            if (((i - ideal) & mask) < ((i - free) & mask)) continue;
+
+            keys[free] = keys[i];
+            values[free] = values[i];
+            free = i;
+        }
+
+        keys[free] = 0;
+        values[free] = 0;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(oldKeys.length << 1);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+
+            int slot = find(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        allocate(16);
+        size = 0;
+    }
+
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+
+        for (long key : keys) {
+            if (key != 0 && n < result.length) result[n++] = key;
+        }
+
+        return result;
+    }
+
+    public void forEach(Consumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Consumer {
+        void accept(long key, long value);
+    }
+}
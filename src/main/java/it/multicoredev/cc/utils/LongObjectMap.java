@@ -0,0 +1,240 @@
+package it.multicoredev.cc.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class LongObjectMap<V> {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // Open addressing with linear probing. Snowflakes are never 0, so 0 marks an empty slot and cannot be used as a key.
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int resizeAt;
+
+    public LongObjectMap() {
+        this(16);
+    }
+
+    public LongObjectMap(int expected) {
+        allocate(capacity(expected));
+    }
+
+    static int capacity(int expected) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expected) capacity <<= 1;
+        return capacity;
+    }
+
+    // Snowflakes keep their timestamp in the high bits, the multiply spreads close ids over the whole table
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    // Probing is bounded by the table size, so a read racing with a writer can return a wrong value but never hang.
+    // Callers sharing a map between threads validate their reads with a lock.
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0) return null;
+
+        long[] keys = this.keys;
+        Object[] values = this.values;
+        int mask = keys.length - 1;
+
+        for (int i = hash(key) & mask, probes = 0; probes < keys.length; i = (i + 1) & mask, probes++) {
+            long k = keys[i];
+            if (k == 0) return null;
+            if (k == key) return i < values.length ? (V) values[i] : null;
+        }
+
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0) throw new IllegalArgumentException("0 is not a valid key");
+        if (value == null) return remove(key);
+
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt) resize();
+        return null;
+    }
+
+    public V computeIfAbsent(long key, LongFunction<? extends V> factory) {
+        V value = get(key);
+        if (value != null) return value;
+
+        value = factory.apply(key);
+        put(key, value);
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == 0) return null;
+
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        return null;
+    }
+
+    // Moves back the entries following a removed slot so no probe sequence is broken, no tombstones are needed
+    private void shiftBack(int free) {
+        int mask = keys.length - 1;
+
+        for (int i = (free + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            int ideal = hash(keys[i]) & mask;
+            if (((i - ideal) & mask) < ((i - free) & mask)) continue;
+
+            keys[free] = keys[i];
+            values[free] = values[i];
+            free = i;
+        }
+
+        keys[free] = 0;
+        values[free] = null;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) insert(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private void insert(long key, Object value) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0) i = (i + 1) & mask;
+
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        allocate(16);
+        size = 0;
+    }
+
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+
+        for (long key : keys) {
+            if (key != 0 && n < result.length) result[n++] = key;
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> result = new ArrayList<>(size);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) result.add((V) values[i]);
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super V> consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) consumer.accept(keys[i], (V) values[i]);
+        }
+    }
+
+    public boolean removeIf(Predicate<? super V> filter) {
+        boolean removed = false;
+
+        for (long key : keys()) {
+            V value = get(key);
+            if (value != null && filter.test(key, value)) {
+                remove(key);
+                removed = true;
+            }
+        }
+
+        return removed;
+    }
+
+    @FunctionalInterface
+    public interface Consumer<V> {
+        void accept(long key, V value);
+    }
+
+    @FunctionalInterface
+    public interface Predicate<V> {
+        boolean test(long key, V value);
+    }
+}
@@ -0,0 +1,90 @@
+package it.multicoredev.cc.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class MessageTemplate {
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    // Literal segments are Strings, placeholders are the Integer index of their argument
+    private final Object[] segments;
+    private final int length;
+
+    private MessageTemplate(Object[] segments, int length) {
+        this.segments = segments;
+        this.length = length;
+    }
+
+    // Splits the text on the given {placeholders} once, anything else between braces is kept as it is.
+    public static MessageTemplate compile(String text, String... placeholders) {
+        List<Object> segments = new ArrayList<>();
+        List<String> names = Arrays.asList(placeholders);
+        StringBuilder literal = new StringBuilder();
+        int length = 0;
+        int i = 0;
+
+        while (i < text.length()) {
+            int open = text.indexOf('{', i);
+            int close = open < 0 ? -1 : text.indexOf('}', open);
+            int index = close < 0 ? -1 : names.indexOf(text.substring(open + 1, close));
+
+            if (index < 0) {
+                int end = open < 0 ? text.length() : open + 1;
+                literal.append(text, i, end);
+                i = end;
+                continue;
+            }
+
+            literal.append(text, i, open);
+            if (literal.length() > 0) {
+                segments.add(literal.toString());
+                length += literal.length();
+                literal.setLength(0);
+            }
+
+            segments.add(index);
+            i = close + 1;
+        }
+
+        if (literal.length() > 0) {
+            segments.add(literal.toString());
+            length += literal.length();
+        }
+
+        return new MessageTemplate(segments.toArray(), length);
+    }
+
+    public String render(Object... args) {
+        StringBuilder builder = BUILDER.get();
+        builder.setLength(0);
+        builder.ensureCapacity(length + 32 * args.length);
+
+        for (Object segment : segments) {
+            if (segment instanceof String) builder.append((String) segment);
+            else builder.append(args[(Integer) segment]);
+        }
+
+        return builder.toString();
+    }
+}
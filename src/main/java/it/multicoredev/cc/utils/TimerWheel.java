@@ -0,0 +1,158 @@
+package it.multicoredev.cc.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.multicoredev.cc.ChannelCloner.LOGGER;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class TimerWheel {
+    private final long tickNanos;
+    private final int mask;
+    private final List<Timeout>[] wheel;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final long startTime;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick;
+
+    // Tasks run on the wheel thread and must be quick, hand anything heavier over to an executor.
+    @SuppressWarnings("unchecked")
+    public TimerWheel(String name, long tickDuration, TimeUnit unit, int size) {
+        if (tickDuration <= 0) throw new IllegalArgumentException("Tick duration must be greater than 0");
+        if (size <= 0 || Integer.bitCount(size) != 1) throw new IllegalArgumentException("Wheel size must be a power of 2");
+
+        tickNanos = unit.toNanos(tickDuration);
+        mask = size - 1;
+        wheel = new List[size];
+        for (int i = 0; i < size; i++) wheel[i] = new ArrayList<>();
+
+        startTime = System.nanoTime();
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) throw new IllegalArgumentException("Task cannot be null");
+
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long sleep = tickNanos * (tick + 1) - (System.nanoTime() - startTime);
+
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+                continue;
+            }
+
+            transferIncoming();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.isCancelled()) continue;
+
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout timeout = bucket.get(i);
+
+            if (timeout.isCancelled()) continue;
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+
+            timeout.expire();
+        }
+
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    public static class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED)) return;
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.error("Error while running scheduled task: " + e.getMessage(), e);
+            }
+        }
+    }
+}
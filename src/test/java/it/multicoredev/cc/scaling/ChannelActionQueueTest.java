@@ -0,0 +1,211 @@
+package it.multicoredev.cc.scaling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+class ChannelActionQueueTest {
+    private static final long GUILD = 1;
+    private static final long OTHER_GUILD = 2;
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+    // One operation at a time, the first one holds the slot until the returned future is completed
+    private CompletableFuture<Void> block(ChannelActionQueue queue) {
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        queue.delete(OTHER_GUILD, 0, 0, () -> gate);
+        return gate;
+    }
+
+    private Supplier<CompletableFuture<Void>> request(String name) {
+        return () -> {
+            sent.add(name);
+            return CompletableFuture.completedFuture(null);
+        };
+    }
+
+    // A demand for a new clone keeps the most recent queued deletion of the template instead
+    @Test
+    void keepsQueuedDeletion() {
+        ChannelActionQueue queue = new ChannelActionQueue(1, 1, guild -> 1);
+        CompletableFuture<Void> gate = block(queue);
+
+        CompletableFuture<Void> first = queue.delete(GUILD, 10, 100, request("delete 100"));
+        CompletableFuture<Void> second = queue.delete(GUILD, 10, 101, request("delete 101"));
+        CompletableFuture<Void> other = queue.delete(GUILD, 20, 200, request("delete 200"));
+
+        assertEquals(101, queue.keepQueuedDeletion(GUILD, 10));
+        assertTrue(second.isCancelled());
+
+        gate.complete(null);
+        assertTrue(first.isDone() && !first.isCompletedExceptionally());
+        assertTrue(other.isDone() && !other.isCompletedExceptionally());
+        assertEquals(0, queue.keepQueuedDeletion(GUILD, 10), "deletions already sent cannot be kept");
+        assertEquals(Arrays.asList("delete 100", "delete 200"), sent);
+    }
+
+    @Test
+    void cancelsOnlyTheGivenDeletion() {
+        ChannelActionQueue queue = new ChannelActionQueue(1, 1, guild -> 1);
+        CompletableFuture<Void> gate = block(queue);
+
+        CompletableFuture<Void> first = queue.delete(GUILD, 10, 100, request("delete 100"));
+        CompletableFuture<Void> second = queue.delete(GUILD, 10, 101, request("delete 101"));
+
+        assertTrue(queue.cancelDeletion(GUILD, 10, 100));
+        assertFalse(queue.cancelDeletion(GUILD, 10, 100), "a deletion is only cancelled once");
+        assertFalse(queue.cancelDeletion(GUILD, 20, 101), "the template must match");
+        assertTrue(first.isCancelled());
+
+        gate.complete(null);
+        assertTrue(second.isDone() && !second.isCancelled());
+        assertFalse(queue.cancelDeletion(GUILD, 10, 101), "sent deletions cannot be cancelled");
+        assertEquals(Arrays.asList("delete 101"), sent);
+    }
+
+    // A clone about to be deleted while a creation of the same template is still queued: the creation is dropped
+    @Test
+    void cancelsQueuedCreation() {
+        ChannelActionQueue queue = new ChannelActionQueue(1, 1, guild -> 1);
+        CompletableFuture<Void> gate = block(queue);
+
+        CompletableFuture<Void> create = queue.create(GUILD, 10, request("create 10"));
+        CompletableFuture<Void> otherCreate = queue.create(GUILD, 20, request("create 20"));
+
+        assertFalse(queue.cancelCreation(OTHER_GUILD, 10), "the guild must match");
+        assertTrue(queue.cancelCreation(GUILD, 10));
+        assertFalse(queue.cancelCreation(GUILD, 10));
+        assertTrue(create.isCancelled());
+
+        gate.complete(null);
+        assertTrue(otherCreate.isDone() && !otherCreate.isCancelled());
+        assertEquals(Arrays.asList("create 20"), sent);
+    }
+
+    // Creations are what members wait for, they go before the deletions queued earlier in the same guild
+    @Test
+    void sendsCreationsFirst() {
+        ChannelActionQueue queue = new ChannelActionQueue(1, 1, guild -> 1);
+        CompletableFuture<Void> gate = block(queue);
+
+        queue.delete(GUILD, 10, 100, request("delete 100"));
+        queue.create(GUILD, 10, request("create 10"));
+
+        gate.complete(null);
+        assertEquals(Arrays.asList("create 10", "delete 100"), sent);
+    }
+
+    // Requests that complete right away must not nest one dispatch per operation
+    @Test
+    void drainsRequestsCompletingImmediately() {
+        ChannelActionQueue queue = new ChannelActionQueue(1, 1, guild -> 1);
+        CompletableFuture<Void> gate = block(queue);
+
+        int[] count = new int[1];
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            futures.add(queue.delete(GUILD + i % 7, 10, 100 + i, () -> {
+                count[0]++;
+                return CompletableFuture.completedFuture(null);
+            }));
+        }
+
+        gate.complete(null);
+        assertEquals(100_000, count[0]);
+        assertTrue(futures.stream().allMatch(future -> future.isDone() && !future.isCompletedExceptionally()));
+    }
+
+    // Guilds take turns, each sending its weight in operations per round while both have work queued. A guild cap above
+    // the shared one keeps a guild's turn going across the shared cap.
+    @Test
+    void sharesSlotsByWeight() {
+        ChannelActionQueue queue = new ChannelActionQueue(1, 4, guild -> guild == GUILD ? 3 : 1);
+        CompletableFuture<Void> gate = block(queue);
+
+        for (int i = 0; i < 6; i++) {
+            queue.delete(GUILD, 10, 100 + i, request("heavy"));
+            queue.delete(3, 30, 300 + i, request("light"));
+        }
+
+        gate.complete(null);
+        assertEquals(Arrays.asList("heavy", "heavy", "heavy", "light", "heavy", "heavy", "heavy", "light",
+                "light", "light", "light", "light"), sent);
+    }
+
+    // A guild with a long backlog does not hold back a guild that only has one operation
+    @Test
+    void backlogDoesNotStarveOtherGuilds() {
+        ChannelActionQueue queue = new ChannelActionQueue(1, 1, guild -> 1);
+        CompletableFuture<Void> gate = block(queue);
+
+        for (int i = 0; i < 100; i++) queue.delete(GUILD, 10, 100 + i, request("busy"));
+        queue.create(3, 30, request("quiet"));
+
+        gate.complete(null);
+        assertEquals(1, sent.indexOf("quiet"));
+    }
+
+    // Operations in flight count against both the shared and the guild cap, a guild at its cap leaves room to the others
+    @Test
+    void respectsInFlightCaps() {
+        ChannelActionQueue queue = new ChannelActionQueue(3, 2, guild -> 4);
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        Supplier<CompletableFuture<Void>> held = () -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            pending.add(future);
+            return future;
+        };
+
+        for (int i = 0; i < 4; i++) queue.delete(GUILD, 10, 100 + i, held);
+        assertEquals(2, pending.size(), "guild cap");
+
+        queue.delete(3, 30, 300, held);
+        queue.delete(3, 30, 301, held);
+        assertEquals(3, pending.size(), "shared cap");
+
+        pending.get(0).complete(null);
+        assertEquals(4, pending.size(), "a completed operation frees its slot");
+    }
+
+    @Test
+    void failedRequestFreesItsSlot() {
+        ChannelActionQueue queue = new ChannelActionQueue(1, 1, guild -> 1);
+
+        CompletableFuture<Void> failed = queue.delete(GUILD, 10, 100, () -> {
+            throw new IllegalStateException("missing permission");
+        });
+        CompletableFuture<Void> next = queue.delete(GUILD, 10, 101, request("delete 101"));
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertTrue(next.isDone() && !next.isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,165 @@
+package it.multicoredev.cc.storage;
+
+import it.multicoredev.cc.storage.models.Clone;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+class CloneJournalTest {
+    // Layout of the journal file, see CloneJournal
+    private static final int HEADER = 16;
+    private static final int ENTRY = 48;
+
+    @TempDir
+    File dir;
+
+    // A journal that was never closed is replayed from its entries alone, nothing was compacted or forced
+    @Test
+    void replaysUnclosedJournal() throws IOException {
+        File file = new File(dir, "storage.db.clones");
+        CloneJournal journal = new CloneJournal(file);
+        journal.add(Arrays.asList(clone(1), clone(2), clone(3)));
+        journal.remove(Collections.singletonList(clone(2)));
+        journal.add(Collections.singletonList(clone(4)));
+
+        assertClones(new CloneJournal(file), 1, 3, 4);
+    }
+
+    // A process killed in the middle of an append leaves a partial entry, the entries before it are kept
+    // and the next appends overwrite it
+    @Test
+    void stopsAtTruncatedEntry() throws IOException {
+        File file = new File(dir, "storage.db.clones");
+        CloneJournal journal = new CloneJournal(file);
+        journal.add(Arrays.asList(clone(1), clone(2), clone(3)));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(HEADER + 2 * ENTRY + ENTRY / 2);
+        }
+
+        CloneJournal reopened = new CloneJournal(file);
+        assertClones(reopened, 1, 2);
+
+        reopened.add(Collections.singletonList(clone(5)));
+        assertClones(new CloneJournal(file), 1, 2, 5);
+    }
+
+    @Test
+    void stopsAtCorruptedEntry() throws IOException {
+        File file = new File(dir, "storage.db.clones");
+        CloneJournal journal = new CloneJournal(file);
+        journal.add(Arrays.asList(clone(1), clone(2), clone(3)));
+
+        // Flip a byte of the last entry's id, its checksum no longer matches
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long position = HEADER + 2 * ENTRY + 8;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        }
+
+        CloneJournal reopened = new CloneJournal(file);
+        assertClones(reopened, 1, 2);
+
+        reopened.add(Collections.singletonList(clone(6)));
+        assertClones(new CloneJournal(file), 1, 2, 6);
+    }
+
+    // Closing compacts the live clones into the snapshot, reopening reads them back from it
+    @Test
+    void closeCompactsIntoSnapshot() throws IOException {
+        File file = new File(dir, "storage.db.clones");
+        CloneJournal journal = new CloneJournal(file);
+        journal.add(Arrays.asList(clone(1), clone(2), clone(3)));
+        journal.remove(Collections.singletonList(clone(1)));
+        journal.close();
+
+        assertTrue(new File(file.getPath() + ".snapshot").exists());
+        assertClones(new CloneJournal(file), 2, 3);
+    }
+
+    // Enough churn to trigger background compactions, the state must match both without closing and after closing.
+    // The compactor is drained first since it rewrites the files the second instance reads
+    @Test
+    void matchesExpectedStateAcrossCompactions() throws IOException {
+        File file = new File(dir, "storage.db.clones");
+        CloneJournal journal = new CloneJournal(file);
+        Random random = new Random(11);
+        Map<Long, Clone> expected = new HashMap<>();
+
+        for (int i = 0; i < 50_000; i++) {
+            long id = 1 + random.nextInt(1_000);
+            Clone removed = expected.remove(id);
+
+            if (removed != null) {
+                journal.remove(Collections.singletonList(removed));
+            } else {
+                Clone clone = new Clone(id, 10, 20, i, 0);
+                journal.add(Collections.singletonList(clone));
+                expected.put(id, clone);
+            }
+        }
+
+        journal.awaitCompaction();
+        assertClones(new CloneJournal(file), expected);
+        journal.close();
+        assertClones(new CloneJournal(file), expected);
+    }
+
+    private static Clone clone(long id) {
+        return new Clone(id, 10, 20, (int) id + 1, id % 2 == 0 ? id + 100 : 0);
+    }
+
+    private static void assertClones(CloneJournal journal, long... ids) {
+        Map<Long, Clone> expected = new HashMap<>();
+        for (long id : ids) expected.put(id, clone(id));
+
+        assertClones(journal, expected);
+    }
+
+    private static void assertClones(CloneJournal journal, Map<Long, Clone> expected) {
+        assertEquals(expected.size(), journal.getClones().size());
+
+        for (Clone clone : journal.getClones()) {
+            Clone match = expected.get(clone.getId());
+            assertNotNull(match, "unexpected clone " + clone.getId());
+            assertEquals(match.getGuild(), clone.getGuild());
+            assertEquals(match.getTemplate(), clone.getTemplate());
+            assertEquals(match.getNumber(), clone.getNumber());
+            assertEquals(match.getSecondary(), clone.getSecondary());
+        }
+    }
+}
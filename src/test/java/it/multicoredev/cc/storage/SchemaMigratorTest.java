@@ -0,0 +1,188 @@
+package it.multicoredev.cc.storage;
+
+import it.multicoredev.cc.storage.models.Clone;
+import it.multicoredev.cc.storage.models.SecondaryTemplate;
+import it.multicoredev.cc.storage.models.Template;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+class SchemaMigratorTest {
+    private static final long GUILD = 900_000_000_000_000_001L;
+    private static final long DISABLED_GUILD = 900_000_000_000_000_002L;
+    private static final long ERROR_CHANNEL = 900_000_000_000_000_003L;
+    private static final long TEMPLATE = 900_000_000_000_000_010L;
+    private static final long SECONDARY_TEMPLATE = 900_000_000_000_000_011L;
+    private static final long LONE_TEMPLATE = 900_000_000_000_000_012L;
+    private static final long CLONE = 900_000_000_000_000_020L;
+    private static final long SECONDARY_CLONE = 900_000_000_000_000_021L;
+    private static final long LONE_CLONE = 900_000_000_000_000_022L;
+
+    @TempDir
+    File dir;
+
+    // Databases written before the migrator existed have the version 1 tables but no version table
+    @Test
+    void migratesDatabaseWithoutVersionTable() throws SQLException {
+        File file = new File(dir, "storage.db");
+        createVersion1(file, false);
+
+        assertMigrated(file, 0);
+    }
+
+    @Test
+    void migratesVersion1Database() throws SQLException {
+        File file = new File(dir, "storage.db");
+        createVersion1(file, true);
+
+        assertMigrated(file, 1);
+    }
+
+    @Test
+    void createsLatestSchemaFromScratch() throws SQLException {
+        File file = new File(dir, "storage.db");
+        new Database(file, 1, 0).close();
+
+        assertEquals(3, getVersion(file));
+        assertFalse(new File(dir, "storage.db.v0.bak").exists(), "an empty database is not backed up");
+    }
+
+    private void assertMigrated(File file, int from) throws SQLException {
+        Database db = new Database(file, 1, 0);
+        try {
+            assertTrue(db.isEnabled(GUILD));
+            assertFalse(db.isEnabled(DISABLED_GUILD));
+
+            Template template = db.getTemplate(TEMPLATE, GUILD);
+            assertNotNull(template);
+            assertEquals("Room %d", template.getName());
+            assertEquals(SECONDARY_TEMPLATE, template.getSecondary());
+
+            // The library wrote missing values as the string "null"
+            Template lone = db.getTemplate(LONE_TEMPLATE, GUILD);
+            assertNotNull(lone);
+            assertFalse(lone.hasSecondary());
+
+            SecondaryTemplate secondary = db.getSecondaryTemplate(GUILD, SECONDARY_TEMPLATE);
+            assertNotNull(secondary);
+            assertEquals(TEMPLATE, secondary.getPrimary());
+
+            Clone clone = db.getClone(CLONE, GUILD);
+            assertNotNull(clone);
+            assertEquals(TEMPLATE, clone.getTemplate());
+            assertEquals(2, clone.getNumber());
+            assertEquals(SECONDARY_CLONE, clone.getSecondary());
+
+            Clone loneClone = db.getClone(LONE_CLONE, GUILD);
+            assertNotNull(loneClone);
+            assertFalse(loneClone.hasSecondary());
+
+            assertEquals(2, db.getClones().size(), "the row with a \"null\" id is dropped");
+
+            assertNull(db.getMeta("commands_hash"));
+            assertTrue(db.setMeta("commands_hash", "abc").join().isSuccess());
+        } finally {
+            db.close();
+        }
+
+        assertEquals(3, getVersion(file));
+        assertTrue(new File(dir, "storage.db.v" + from + ".bak").exists(), "the database is backed up before migrating");
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            for (String table : new String[]{"guilds", "templates", "secondary_templates", "clones", "secondary_clones"}) {
+                String column = table.equals("guilds") ? "guild" : "id";
+                try (ResultSet rs = statement.executeQuery("SELECT DISTINCT typeof(`" + column + "`) FROM `" + table + "`")) {
+                    assertTrue(rs.next());
+                    assertEquals("integer", rs.getString(1), table + " snowflakes");
+                    assertFalse(rs.next(), table + " snowflakes have a single type");
+                }
+            }
+
+            try (ResultSet rs = statement.executeQuery("SELECT `channel` FROM `guilds` WHERE `guild` = " + GUILD)) {
+                assertTrue(rs.next());
+                assertEquals(ERROR_CHANNEL, rs.getLong(1));
+            }
+        }
+
+        // Reopening a migrated database applies nothing and keeps what was written after the migration
+        Database reopened = new Database(file, 1, 0);
+        try {
+            assertEquals("abc", reopened.getMeta("commands_hash"));
+            assertEquals(2, reopened.getClones().size());
+        } finally {
+            reopened.close();
+        }
+        assertEquals(3, getVersion(file));
+    }
+
+    // The version 1 schema with text snowflakes, filled like the library used to
+    private static void createVersion1(File file, boolean versionTable) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE `guilds` (`guild` VARCHAR(20) PRIMARY KEY, `enabled` TINYINT DEFAULT 1, `channel` VARCHAR(20))");
+            statement.executeUpdate("CREATE TABLE `templates` (`id` VARCHAR(20) PRIMARY KEY, `guild` VARCHAR(20) NOT NULL, " +
+                    "`name` VARCHAR(100) NOT NULL, `secondary` VARCHAR(20))");
+            statement.executeUpdate("CREATE TABLE `secondary_templates` (`id` VARCHAR(20) PRIMARY KEY, `guild` VARCHAR(20) NOT NULL, " +
+                    "`name` VARCHAR(100) NOT NULL, `primary` VARCHAR(20))");
+            statement.executeUpdate("CREATE TABLE `clones` (`id` VARCHAR(20) PRIMARY KEY, `guild` VARCHAR(20) NOT NULL, " +
+                    "`template` VARCHAR(20) NOT NULL, `number` INTEGER NOT NULL, `secondary` VARCHAR(20))");
+            statement.executeUpdate("CREATE TABLE `secondary_clones` (`id` VARCHAR(20) PRIMARY KEY, `guild` VARCHAR(20) NOT NULL, `number` INTEGER NOT NULL)");
+
+            statement.executeUpdate("INSERT INTO `guilds` VALUES ('" + GUILD + "', 'true', '" + ERROR_CHANNEL + "')");
+            statement.executeUpdate("INSERT INTO `guilds` VALUES ('" + DISABLED_GUILD + "', 0, 'null')");
+            statement.executeUpdate("INSERT INTO `templates` VALUES ('" + TEMPLATE + "', '" + GUILD + "', 'Room %d', '" + SECONDARY_TEMPLATE + "')");
+            statement.executeUpdate("INSERT INTO `templates` VALUES ('" + LONE_TEMPLATE + "', '" + GUILD + "', 'Lobby %d', 'null')");
+            statement.executeUpdate("INSERT INTO `secondary_templates` VALUES ('" + SECONDARY_TEMPLATE + "', '" + GUILD + "', 'Chat %d', '" + TEMPLATE + "')");
+            statement.executeUpdate("INSERT INTO `clones` VALUES ('" + CLONE + "', '" + GUILD + "', '" + TEMPLATE + "', 2, '" + SECONDARY_CLONE + "')");
+            statement.executeUpdate("INSERT INTO `clones` VALUES ('" + LONE_CLONE + "', '" + GUILD + "', '" + LONE_TEMPLATE + "', 2, 'null')");
+            statement.executeUpdate("INSERT INTO `clones` VALUES ('null', '" + GUILD + "', '" + TEMPLATE + "', 3, 'null')");
+            statement.executeUpdate("INSERT INTO `secondary_clones` VALUES ('" + SECONDARY_CLONE + "', '" + GUILD + "', 2)");
+
+            if (versionTable) {
+                statement.executeUpdate("CREATE TABLE `schema_version` (`version` INTEGER PRIMARY KEY, `description` VARCHAR(100) NOT NULL, `applied` INTEGER NOT NULL)");
+                statement.executeUpdate("INSERT INTO `schema_version` VALUES (1, 'Initial schema', 0)");
+            }
+        }
+    }
+
+    private static int getVersion(File file) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT MAX(`version`) FROM `schema_version`")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+}
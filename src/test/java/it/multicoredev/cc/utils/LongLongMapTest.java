@@ -0,0 +1,78 @@
+package it.multicoredev.cc.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+class LongLongMapTest {
+
+    // Keys from a small range collide and cluster a lot, which exercises the backshift on removal
+    @Test
+    void matchesHashMap() {
+        Random random = new Random(29);
+        LongLongMap map = new LongLongMap();
+        Map<Long, Long> expected = new HashMap<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            long key = 1 + random.nextInt(2_000);
+            if (random.nextInt(8) == 0) key = random.nextLong() | 1;
+
+            switch (random.nextInt(5)) {
+                case 0:
+                case 1:
+                    map.put(key, i);
+                    expected.put(key, (long) i);
+                    break;
+                case 2:
+                    assertEquals(expected.merge(key, 3L, Long::sum).longValue(), map.addTo(key, 3), "addTo " + key);
+                    break;
+                case 3:
+                    assertEquals(expected.remove(key) != null, map.remove(key), "remove " + key);
+                    break;
+                default:
+                    assertEquals(expected.getOrDefault(key, -1L).longValue(), map.get(key, -1), "get " + key);
+                    assertEquals(expected.containsKey(key), map.containsKey(key), "containsKey " + key);
+            }
+
+            assertEquals(expected.size(), map.size());
+        }
+
+        long[] keys = map.keys();
+        assertEquals(expected.size(), keys.length);
+        for (long key : keys) assertEquals(expected.get(key).longValue(), map.get(key, -1), "key " + key);
+    }
+
+    @Test
+    void zeroIsNeverStored() {
+        LongLongMap map = new LongLongMap();
+
+        assertEquals(-1, map.get(0, -1));
+        assertFalse(map.containsKey(0));
+        assertFalse(map.remove(0));
+    }
+}
@@ -0,0 +1,97 @@
+package it.multicoredev.cc.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+class LongObjectMapTest {
+
+    // Keys from a small range collide and cluster a lot, which exercises the backshift on removal
+    @Test
+    void matchesHashMap() {
+        Random random = new Random(17);
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Map<Long, String> expected = new HashMap<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            long key = 1 + random.nextInt(2_000);
+            if (random.nextInt(8) == 0) key = random.nextLong() | 1;
+
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    String value = "v" + i;
+                    assertEquals(expected.put(key, value), map.put(key, value), "put " + key);
+                    break;
+                case 2:
+                    assertEquals(expected.remove(key), map.remove(key), "remove " + key);
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key), "get " + key);
+                    assertEquals(expected.containsKey(key), map.containsKey(key), "containsKey " + key);
+            }
+
+            assertEquals(expected.size(), map.size());
+        }
+
+        assertSameContent(expected, map);
+    }
+
+    @Test
+    void removeIfDropsMatchingEntries() {
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        for (long key = 1; key <= 1_000; key++) map.put(key, key);
+
+        assertTrue(map.removeIf((key, value) -> value % 3 == 0));
+        assertFalse(map.removeIf((key, value) -> value % 3 == 0));
+        assertEquals(667, map.size());
+        for (long key = 1; key <= 1_000; key++) assertEquals(key % 3 != 0, map.containsKey(key), "key " + key);
+    }
+
+    @Test
+    void zeroIsNeverStored() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+
+        assertNull(map.get(0));
+        assertFalse(map.containsKey(0));
+        assertNull(map.remove(0));
+    }
+
+    private static void assertSameContent(Map<Long, String> expected, LongObjectMap<String> map) {
+        long[] keys = map.keys();
+        List<String> values = map.values();
+        assertEquals(expected.size(), keys.length);
+        assertEquals(expected.size(), values.size());
+
+        for (long key : keys) assertEquals(expected.get(key), map.get(key), "key " + key);
+        for (String value : values) assertTrue(expected.containsValue(value), "value " + value);
+    }
+}
@@ -0,0 +1,102 @@
+package it.multicoredev.cc.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Copyright © 2022 by Lorenzo Magni
+ * This file is part of ChannelCloner.
+ * ChannelCloner is under "The 3-Clause BSD License", you can find a copy <a href="https://opensource.org/licenses/BSD-3-Clause">here</a>.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+class TimerWheelTest {
+
+    // A 1ms tick on an 8 slot wheel, so most delays below need several rounds
+    @Test
+    void runsAfterDelay() throws InterruptedException {
+        TimerWheel timer = new TimerWheel("TimerWheelTest", 1, TimeUnit.MILLISECONDS, 8);
+        try {
+            CountDownLatch ran = new CountDownLatch(1);
+            long start = System.nanoTime();
+            TimerWheel.Timeout timeout = timer.schedule(ran::countDown, 30, TimeUnit.MILLISECONDS);
+
+            assertTrue(ran.await(5, TimeUnit.SECONDS), "task did not run");
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30), "task ran before its delay");
+            assertTrue(timeout.isExpired());
+            assertFalse(timeout.cancel(), "an expired timeout cannot be cancelled");
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    void runsInDeadlineOrder() throws InterruptedException {
+        TimerWheel timer = new TimerWheel("TimerWheelTest", 1, TimeUnit.MILLISECONDS, 8);
+        try {
+            List<Integer> delays = new ArrayList<>(Arrays.asList(5, 15, 40, 80, 120));
+            Collections.shuffle(delays);
+
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch ran = new CountDownLatch(delays.size());
+            for (int delay : delays) {
+                timer.schedule(() -> {
+                    order.add(delay);
+                    ran.countDown();
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+
+            assertTrue(ran.await(5, TimeUnit.SECONDS), "tasks did not run");
+            assertEquals(Arrays.asList(5, 15, 40, 80, 120), order);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    // Cancelling before the deadline drops the task, the wheel keeps running the others
+    @Test
+    void cancelledTaskNeverRuns() throws InterruptedException {
+        TimerWheel timer = new TimerWheel("TimerWheelTest", 1, TimeUnit.MILLISECONDS, 8);
+        try {
+            AtomicBoolean cancelledRan = new AtomicBoolean();
+            CountDownLatch ran = new CountDownLatch(1);
+
+            TimerWheel.Timeout cancelled = timer.schedule(() -> cancelledRan.set(true), 20, TimeUnit.MILLISECONDS);
+            timer.schedule(ran::countDown, 60, TimeUnit.MILLISECONDS);
+
+            assertTrue(cancelled.cancel());
+            assertTrue(cancelled.isCancelled());
+            assertFalse(cancelled.cancel(), "a timeout is only cancelled once");
+
+            assertTrue(ran.await(5, TimeUnit.SECONDS), "task did not run");
+            assertFalse(cancelledRan.get(), "cancelled task ran");
+            assertFalse(cancelled.isExpired());
+        } finally {
+            timer.stop();
+        }
+    }
+}